@@ -0,0 +1,306 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+This class represents the micro-benchmarks of the priority queues and of the distance computation. Every benchmark is run for a
+number of warmup iterations (so the JIT has compiled the code being measured) and then for a number of measured iterations,
+timed with System.nanoTime(), and the mean time per operation is printed with its standard deviation over the iterations.
+
+The benchmarks are run for every combination of the sizes, dimensions and values of k given, on random points (with integer
+coordinates in [0, 128) like the SIFT vectors), or on the first points of fvecs files:
+
+    java Benchmark [--points file.fvecs --queries file.fvecs] [--sizes 10000,100000] [--dims 32,128] [--ks 1,10,100,1000]
+                   [--warmup 3] [--iterations 5] [--queries-per-op 10]
+
+*/
+public class Benchmark{
+
+	/**
+	 * receives the results of the benchmarked code, so the JIT cannot remove the code as dead
+	 */
+	static volatile double sink;
+
+	/**
+	 * the number of warmup iterations, not measured
+	 */
+	private int warmup;
+
+	/**
+	 * the number of measured iterations
+	 */
+	private int iterations;
+
+	// the code of a benchmark, returns the number of operations it made
+	interface Operation{
+		long run();
+	}
+
+	// class constructor that initializes all the instance variables
+	public Benchmark(int warmupInput, int iterationsInput){
+		this.warmup = warmupInput;
+		this.iterations = iterationsInput;
+
+	}
+
+	/**
+	 * Runs the warmup iterations then the measured ones, and prints the mean time per operation
+	 *
+	 * @param name the name of the benchmark printed with its result
+	 * @param operation the code benchmarked
+	 * @return the mean time per operation in nanoseconds
+	 */
+	public double measure(String name, Operation operation){
+		for(int i = 0; i < this.warmup; i++){
+			operation.run();
+		}
+
+		double[] nsPerOp = new double[this.iterations];
+		for(int i = 0; i < this.iterations; i++){
+			long start = System.nanoTime();
+			long ops = operation.run();
+			long end = System.nanoTime();
+			nsPerOp[i] = (double) (end - start) / Math.max(1, ops);
+		}
+
+		double mean = 0;
+		for(double t : nsPerOp){
+			mean += t;
+		}
+		mean /= nsPerOp.length;
+
+		double variance = 0;
+		for(double t : nsPerOp){
+			variance += (t - mean) * (t - mean);
+		}
+		double deviation = nsPerOp.length > 1 ? Math.sqrt(variance / (nsPerOp.length - 1)) : 0.0;
+
+		System.out.println(String.format("%-60s %14.1f ns/op  (+- %.1f)", name, mean, deviation));
+		return mean;
+	}
+
+	/**
+	 * Creates a set of random points with integer coordinates in [0, 128)
+	 *
+	 * @param n the number of points
+	 * @param d the dimension of the points
+	 * @param seed the seed of the random generator
+	 * @return the new set of points
+	 */
+	public static PointSet randomPoints(int n, int d, long seed){
+		Random random = new Random(seed);
+		float[] vectors = new float[n * d];
+		int[] labels = new int[n];
+		for(int i = 0; i < vectors.length; i++){
+			vectors[i] = random.nextInt(128);
+		}
+		for(int i = 0; i < n; i++){
+			labels[i] = i;
+		}
+		return new PointSet(vectors, d, labels);
+	}
+
+	/**
+	 * Keeps the first n points of a set
+	 *
+	 * @param ps the set of points
+	 * @param n the number of points kept
+	 * @return a new set with a copy of the first n points
+	 */
+	public static PointSet firstPoints(PointSet ps, int n){
+		n = Math.min(n, ps.size());
+		int d = ps.getDimension();
+		float[] vectors = new float[n * d];
+		int[] labels = new int[n];
+		ps.copyRows(0, n, vectors, 0);
+		for(int i = 0; i < n; i++){
+			labels[i] = ps.getLabel(i);
+		}
+		return new PointSet(vectors, d, labels);
+	}
+
+	/**
+	 * Gives the searchers compared by the findKNN benchmarks, by name
+	 *
+	 * @param points the set of points searched
+	 * @return the searchers in the order they are benchmarked
+	 */
+	public static Map<String, KNNSearcher> searchers(PointSet points){
+		Map<String, KNNSearcher> searchers = new LinkedHashMap<String, KNNSearcher>();
+		for(int version = 1; version <= 4; version++){
+			searchers.put("PQ" + version, KNN.searcher(version, points));
+		}
+		searchers.put("blocked", new BlockedKNN(points));
+		// past about 20 dimensions the KD-tree visits almost every leaf
+		if(points.getDimension() <= 20){
+			searchers.put("kd", new KDTree(points));
+		}
+		searchers.put("vp", new VPTree(points));
+		searchers.put("ivf", new IVFIndex(points));
+		searchers.put("hnsw", new HNSWIndex(points));
+		searchers.put("pq", new ProductQuantizationIndex(points));
+		searchers.put("sq-int8", new ScalarQuantizedIndex(points, false, 0));
+		searchers.put("sq-fp16", new ScalarQuantizedIndex(points, true, 0));
+		return searchers;
+	}
+
+	/**
+	 * Creates the queue of the given version, without a query point so that the keys of the points offered are used
+	 */
+	private static PriorityQueueIF<LabelledPoint> newQueue(int version, int k){
+		if(version == 1){
+			return new PriorityQueue1(k, null, null);
+		}
+		else if(version == 2){
+			return new PriorityQueue2(k, null, null);
+		}
+		else if(version == 3){
+			return new PriorityQueue3(k, null, null);
+		}
+		return new PriorityQueue4(k, null, null);
+	}
+
+	// parses a comma separated list of integers
+	private static int[] parseList(String list){
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for(int i = 0; i < parts.length; i++){
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Runs the benchmarks asked on the command line
+	 *
+	 * @param args the options described at the top of the class
+	 */
+	public static void main(String[] args){
+		String pointsFile = null;
+		String queriesFile = null;
+		int[] sizes = {10000, 100000};
+		int[] dims = {32, 128};
+		int[] ks = {1, 10, 100, 1000};
+		int warmup = 3;
+		int iterations = 5;
+		int queriesPerOp = 10;
+
+		for(int a = 0; a + 1 < args.length; a += 2){
+			if(args[a].equals("--points")){
+				pointsFile = args[a + 1];
+			}
+			else if(args[a].equals("--queries")){
+				queriesFile = args[a + 1];
+			}
+			else if(args[a].equals("--sizes")){
+				sizes = parseList(args[a + 1]);
+			}
+			else if(args[a].equals("--dims")){
+				dims = parseList(args[a + 1]);
+			}
+			else if(args[a].equals("--ks")){
+				ks = parseList(args[a + 1]);
+			}
+			else if(args[a].equals("--warmup")){
+				warmup = Integer.parseInt(args[a + 1]);
+			}
+			else if(args[a].equals("--iterations")){
+				iterations = Integer.parseInt(args[a + 1]);
+			}
+			else if(args[a].equals("--queries-per-op")){
+				queriesPerOp = Integer.parseInt(args[a + 1]);
+			}
+			else{
+				System.out.println("Unknown option " + args[a]);
+				return;
+			}
+		}
+
+		Benchmark bench = new Benchmark(warmup, iterations);
+
+		// with fvecs files, the dimension is the one of the files
+		PointSet filePoints = pointsFile == null ? null : PointSet.load_ANN_SIFT(pointsFile);
+		PointSet fileQueries = queriesFile == null ? null : PointSet.load_ANN_SIFT(queriesFile);
+		if(filePoints != null){
+			dims = new int[] {filePoints.getDimension()};
+		}
+
+		System.out.println("distance kernel: " + LabelledPoint.KERNEL.getClass().getName());
+
+		for(int d : dims){
+			// distanceTo between random pairs of points, and the squared distance with a bound half way through the sum
+			PointSet pairs = filePoints != null ? firstPoints(filePoints, 2048) : randomPoints(2048, d, 1);
+			ArrayList<LabelledPoint> pairList = pairs.getPointsList();
+			int numPairs = pairList.size() / 2;
+
+			bench.measure("distanceTo d=" + d, () -> {
+				double sum = 0;
+				for(int i = 0; i < numPairs; i++){
+					sum += pairList.get(2*i).distanceTo(pairList.get(2*i + 1));
+				}
+				sink = sum;
+				return numPairs;
+			});
+
+			double bound = d * 128.0 * 128.0 / 12;
+			bench.measure("squaredDistance bounded d=" + d, () -> {
+				double sum = 0;
+				float[] data = pairs.getVectors();
+				for(int i = 0; i < numPairs; i++){
+					sum += LabelledPoint.squaredDistance(data, 2*i*d, data, (2*i + 1)*d, d, bound);
+				}
+				sink = sum;
+				return numPairs;
+			});
+
+			for(int n : sizes){
+				PointSet points = filePoints != null ? firstPoints(filePoints, n) : randomPoints(n, d, 2);
+				PointSet queries = fileQueries != null ? firstPoints(fileQueries, queriesPerOp) : randomPoints(queriesPerOp, d, 3);
+				ArrayList<LabelledPoint> queryList = queries.getPointsList();
+
+				// random keys offered to each queue version, then all the points left are polled
+				Random random = new Random(4);
+				ArrayList<LabelledPoint> keyed = new ArrayList<LabelledPoint>(n);
+				for(int i = 0; i < n; i++){
+					LabelledPoint point = points.getPoint(i);
+					point.setKey(random.nextDouble());
+					keyed.add(point);
+				}
+
+				Map<String, KNNSearcher> searchers = searchers(points);
+
+				for(int k : ks){
+					for(int version = 1; version <= 4; version++){
+						int v = version;
+						bench.measure("offer+poll PQ" + v + " n=" + n + " k=" + k, () -> {
+							PriorityQueueIF<LabelledPoint> pq = newQueue(v, k);
+							for(int i = 0; i < keyed.size(); i++){
+								pq.offer(keyed.get(i));
+							}
+							double sum = 0;
+							while(!pq.isEmpty()){
+								sum += pq.poll().getKey();
+							}
+							sink = sum;
+							return keyed.size();
+						});
+					}
+
+					for(Map.Entry<String, KNNSearcher> entry : searchers.entrySet()){
+						KNNSearcher searcher = entry.getValue();
+						bench.measure("findKNN " + entry.getKey() + " n=" + n + " d=" + d + " k=" + k, () -> {
+							double sum = 0;
+							for(int q = 0; q < queryList.size(); q++){
+								sum += searcher.findKNN(queryList.get(q), k).get(0).getKey();
+							}
+							sink = sum;
+							return queryList.size();
+						});
+					}
+				}
+			}
+		}
+	}
+
+}
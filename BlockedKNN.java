@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+
+/*
+This class represents the implementation of finding the k nearest neighbors of a batch of query points by tiles. The squared
+norm of every point is computed once, then the queries are taken a tile at a time and the set of points is read block by
+block: every row of a block is compared to all the queries of the tile while it is in the cache, using
+||x - q||^2 = ||x||^2 - 2 x.q + ||q||^2, so each point costs one inner product per query and the set of points is read from
+memory once per tile of queries instead of once per query. Each query keeps its nearest neighbors in a PriorityQueue4.
+
+*/
+public class BlockedKNN implements KNNSearcher{
+
+	/**
+	 * represents the set of points that we are to find the distance from the query points
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the squared norm of each point of the set
+	 */
+	private double[] norms;
+
+	/**
+	 * the number of queries compared to a block of points at a time
+	 */
+	private int queryTile;
+
+	/**
+	 * the number of rows of a block of points, chosen so that a block fits in the cache
+	 */
+	private int blockRows;
+
+	// the number of queries in a tile when it is not given
+	static final int DEFAULT_QUERY_TILE = 16;
+
+	// the size of a block of points in bytes when it is not given, about the size of a level 2 cache
+	static final int DEFAULT_BLOCK_BYTES = 256 * 1024;
+
+	// class constructor that initializes all the instance variables and computes the norms of the points
+	public BlockedKNN(PointSet ps, int queryTileInput, int blockRowsInput){
+		this.pointsS = ps;
+		this.queryTile = queryTileInput;
+		this.blockRows = blockRowsInput;
+		this.norms = new double[ps.size()];
+
+		int d = ps.getDimension();
+		ps.scan(0, ps.size(), (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				this.norms[first + r] = LabelledPoint.innerProduct(data, off + r*d, data, off + r*d, d);
+			}
+		});
+
+	}
+
+	// constructs the engine with the default tile and block sizes
+	public BlockedKNN(PointSet ps){
+		this(ps, DEFAULT_QUERY_TILE, Math.max(1, DEFAULT_BLOCK_BYTES / (4 * Math.max(1, ps.getDimension()))));
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query, as a tile of a single query
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to the query, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		ArrayList<LabelledPoint> single = new ArrayList<LabelledPoint>(1);
+		single.add(query);
+		return this.findKNN(single, k).get(0);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of every query of the batch, going through the set of points once per tile of queries
+	 *
+	 * @param queries the points of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to each query, starting with the closest one, in the order of the queries
+	 */
+	public ArrayList<ArrayList<LabelledPoint>> findKNN(ArrayList<LabelledPoint> queries, int k){
+		int numQueries = queries.size();
+		int n = this.pointsS.size();
+		int d = this.pointsS.getDimension();
+
+		PriorityQueue4[] queues = new PriorityQueue4[numQueries];
+		float[][] queryData = new float[numQueries][];
+		int[] queryOffs = new int[numQueries];
+		double[] queryNorms = new double[numQueries];
+		for(int q = 0; q < numQueries; q++){
+			LabelledPoint query = queries.get(q);
+			queues[q] = new PriorityQueue4(k);
+			queryData[q] = query.getData();
+			queryOffs[q] = query.getOffset();
+			queryNorms[q] = LabelledPoint.innerProduct(queryData[q], queryOffs[q], queryData[q], queryOffs[q], d);
+		}
+
+		for(int tileStart = 0; tileStart < numQueries; tileStart += this.queryTile){
+			int tileEnd = Math.min(tileStart + this.queryTile, numQueries);
+			int tileFirst = tileStart;
+
+			for(int blockStart = 0; blockStart < n; blockStart += this.blockRows){
+				int blockEnd = (int) Math.min((long) blockStart + this.blockRows, n);
+
+				this.pointsS.scan(blockStart, blockEnd, (first, rows, data, off) -> {
+					// the row stays in the cache while it is compared to all the queries of the tile
+					for(int r = 0; r < rows; r++){
+						int rowOff = off + r*d;
+						double norm = this.norms[first + r];
+
+						for(int q = tileFirst; q < tileEnd; q++){
+							double dot = LabelledPoint.innerProduct(data, rowOff, queryData[q], queryOffs[q], d);
+							// the keys of the queues are squared distances, which are ordered like the distances
+							double squared = norm - 2 * dot + queryNorms[q];
+							if(squared < queues[q].bound()){
+								queues[q].offer(first + r, squared);
+							}
+						}
+					}
+				});
+			}
+		}
+
+		ArrayList<ArrayList<LabelledPoint>> results = new ArrayList<ArrayList<LabelledPoint>>(numQueries);
+		for(int q = 0; q < numQueries; q++){
+			// every row of the set was compared to every query
+			queues[q].countWork(n);
+			int size = queues[q].size();
+			int[] ids = new int[size];
+			double[] keys = new double[size];
+			queues[q].drainSorted(ids, keys);
+
+			ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(size);
+			for(int i = 0; i < size; i++){
+				LabelledPoint point = this.pointsS.getPoint(ids[i]);
+				// rounding can make the squared distance of a point very close to the query slightly negative
+				point.setKey(Math.sqrt(Math.max(0.0, keys[i])));
+				finalKNN.add(point);
+			}
+			results.add(finalKNN);
+		}
+		return results;
+	}
+
+}
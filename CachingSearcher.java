@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+This class represents a cache of query results in front of another KNNSearcher: a query whose vector and k were already asked
+is answered from the cache, without searching the set of points again. The cache holds at most maxEntries results and about
+maxBytes bytes, and evicts the least recently used results first (a LinkedHashMap in access order). The queries match only
+when their coordinates are exactly the same.
+
+All the accesses to the map are synchronized, the searches of the misses are not, so two threads missing the same query at
+the same time both search it. A search that was running when the cache was cleared does not store its result, since it may
+have been made on the points before a change. The numbers of hits, misses and evictions are counted.
+
+*/
+public class CachingSearcher implements KNNSearcher{
+
+	/**
+	 * what answers the queries that are not in the cache
+	 */
+	private KNNSearcher searcher;
+
+	/**
+	 * the results in the cache, from the least recently used one
+	 */
+	private LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * the maximum number of results and of bytes of the cache, and the estimated bytes of the results in it
+	 */
+	private int maxEntries;
+	private long maxBytes;
+	private long bytes;
+
+	/**
+	 * the number of times the cache was cleared, a result being stored only if it did not change during its search
+	 */
+	private long generation;
+
+	/**
+	 * the number of queries answered from the cache, searched, and of results evicted
+	 */
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+
+	// the bytes of an object header and of an array header, for the estimated size of the results
+	static final int OBJECT_BYTES = 16;
+
+	// the maximum number of bytes of the cache when it is not given
+	static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+	// a query: the bits of its coordinates and k
+	private static class Key{
+		int[] bits;
+		int k;
+		int hash;
+
+		Key(LabelledPoint query, int k){
+			float[] data = query.getData();
+			int offset = query.getOffset();
+			this.bits = new int[query.getLength()];
+			for(int j = 0; j < this.bits.length; j++){
+				this.bits[j] = Float.floatToIntBits(data[offset + j]);
+			}
+			this.k = k;
+			this.hash = 31 * Arrays.hashCode(this.bits) + k;
+		}
+
+		public int hashCode(){
+			return this.hash;
+		}
+
+		public boolean equals(Object other){
+			if(!(other instanceof Key)){
+				return false;
+			}
+			Key key = (Key) other;
+			return this.hash == key.hash && this.k == key.k && Arrays.equals(this.bits, key.bits);
+		}
+	}
+
+	// the result of a query: its nearest points and their keys, and the estimated bytes of the entry
+	private static class Entry{
+		LabelledPoint[] points;
+		double[] keys;
+		long bytes;
+	}
+
+	// class constructor that initializes all the instance variables
+	public CachingSearcher(KNNSearcher searcherInput, int maxEntriesInput, long maxBytesInput){
+		this.searcher = searcherInput;
+		this.maxEntries = Math.max(1, maxEntriesInput);
+		this.maxBytes = Math.max(0, maxBytesInput);
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query in the cache, or with the searcher if they are not in it
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to the query, starting with the closest one, new points that the caller may change
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		Key key = new Key(query, k);
+		Entry entry;
+		long searchGeneration;
+		synchronized(this){
+			entry = this.entries.get(key);
+			searchGeneration = this.generation;
+		}
+
+		if(entry != null){
+			this.hits.increment();
+			return copy(entry);
+		}
+		this.misses.increment();
+
+		ArrayList<LabelledPoint> result = this.searcher.findKNN(query, k);
+		entry = new Entry();
+		entry.points = new LabelledPoint[result.size()];
+		entry.keys = new double[result.size()];
+		entry.bytes = OBJECT_BYTES + 4L * key.bits.length + 3 * OBJECT_BYTES;
+		for(int i = 0; i < result.size(); i++){
+			LabelledPoint point = result.get(i);
+			entry.points[i] = point;
+			entry.keys[i] = point.getKey();
+			// a point that is not a view over the set of points holds its own copy of the vector
+			entry.bytes += 2 * OBJECT_BYTES + 8 + (point.getData().length == point.getLength() ? 4L * point.getLength() : 0);
+		}
+
+		synchronized(this){
+			// the cache was cleared during the search, the result may be stale
+			if(this.generation != searchGeneration){
+				return copy(entry);
+			}
+			Entry previous = this.entries.put(key, entry);
+			this.bytes += entry.bytes - (previous == null ? 0 : previous.bytes);
+			this.evict();
+		}
+		return copy(entry);
+	}
+
+	// removes the least recently used results until the cache is within its bounds, called while holding the lock
+	private void evict(){
+		Iterator<Map.Entry<Key, Entry>> iterator = this.entries.entrySet().iterator();
+		while(iterator.hasNext() && (this.entries.size() > this.maxEntries || this.bytes > this.maxBytes)){
+			this.bytes -= iterator.next().getValue().bytes;
+			iterator.remove();
+			this.evictions.increment();
+		}
+	}
+
+	// gives new points for the result in the cache, so the caller cannot change the keys of the points in the cache
+	private static ArrayList<LabelledPoint> copy(Entry entry){
+		ArrayList<LabelledPoint> result = new ArrayList<LabelledPoint>(entry.points.length);
+		for(int i = 0; i < entry.points.length; i++){
+			LabelledPoint point = entry.points[i];
+			LabelledPoint view = new LabelledPoint(point.getData(), point.getOffset(), point.getLength(), point.getLabel());
+			view.setKey(entry.keys[i]);
+			result.add(view);
+		}
+		return result;
+	}
+
+	// removes all the results from the cache, the searches running at the same time not storing theirs
+	public synchronized void clear(){
+		this.generation++;
+		this.entries.clear();
+		this.bytes = 0;
+	}
+
+	// gets the number of queries answered from the cache
+	public long getHits(){
+		return this.hits.sum();
+	}
+
+	// gets the number of queries that were not in the cache
+	public long getMisses(){
+		return this.misses.sum();
+	}
+
+	// gets the number of results evicted from the cache
+	public long getEvictions(){
+		return this.evictions.sum();
+	}
+
+	/**
+	 * Gives the counters of the cache and its size
+	 *
+	 * @return the description of the cache
+	 */
+	public synchronized String statistics(){
+		long hitCount = this.hits.sum();
+		long total = hitCount + this.misses.sum();
+		return String.format("Cache: %d hits, %d misses (hit rate %.1f%%), %d evictions, %d results in %d bytes",
+			hitCount, total - hitCount, total == 0 ? 0.0 : 100.0 * hitCount / total, this.evictions.sum(), this.entries.size(), this.bytes);
+	}
+
+}
@@ -0,0 +1,14 @@
+/* 
+This interface represents the loops computing distances between two vectors stored in flat float arrays. LabelledPoint picks
+one implementation when it is loaded (see LabelledPoint.KERNEL) and every findKNN goes through it.
+*/
+
+public interface DistanceKernel {
+
+    // Computes the squared Euclidean distance between the vectors of the given length starting at a[aOff] and b[bOff], giving up
+    // as soon as the partial sum is over the bound, in which case a value over the bound is returned.
+    double squaredDistance(float[] a, int aOff, float[] b, int bOff, int length, double bound);
+
+    // Computes the inner product of the vectors of the given length starting at a[aOff] and b[bOff].
+    double innerProduct(float[] a, int aOff, float[] b, int bOff, int length);
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+This class represents the evaluation of the k nearest neighbors found for a batch of queries: their recall against the ground
+truth of the data set (the groundtruth ivecs files of corpus-texmex give the ids of the true nearest neighbors of each query),
+the number of queries answered per second, and the percentiles of the latency of a single query.
+
+*/
+public class Evaluation{
+
+	/**
+	 * Computes the recall@k of the results: for each query, the fraction of its k true nearest neighbors that are among the
+	 * first k points found, averaged over the queries
+	 *
+	 * @param results the nearest neighbors found for each query, starting with the closest one
+	 * @param groundTruth the ids of the true nearest neighbors of each query, starting with the closest one
+	 * @param k the number of nearest neighbors compared
+	 * @return the recall@k, between 0 and 1
+	 */
+	public static double recallAtK(ArrayList<ArrayList<LabelledPoint>> results, int[][] groundTruth, int k){
+		int numQueries = Math.min(results.size(), groundTruth.length);
+		if(numQueries == 0){
+			return 0.0;
+		}
+
+		double total = 0.0;
+		for(int q = 0; q < numQueries; q++){
+			int expected = Math.min(k, groundTruth[q].length);
+			if(expected == 0){
+				continue;
+			}
+			HashSet<Integer> truth = new HashSet<Integer>();
+			for(int i = 0; i < expected; i++){
+				truth.add(groundTruth[q][i]);
+			}
+
+			ArrayList<LabelledPoint> found = results.get(q);
+			int hits = 0;
+			for(int i = 0; i < Math.min(k, found.size()); i++){
+				if(truth.contains(found.get(i).getLabel())){
+					hits++;
+				}
+			}
+			total += (double) hits / expected;
+		}
+		return total / numQueries;
+	}
+
+	/**
+	 * Gives the value under which the given fraction of the sorted values are (nearest-rank percentile)
+	 *
+	 * @param sorted the values, in increasing order
+	 * @param fraction the fraction of the values, between 0 and 1 (0.99 for the 99th percentile)
+	 * @return the percentile
+	 */
+	public static long percentile(long[] sorted, double fraction){
+		if(sorted.length == 0){
+			return 0;
+		}
+		int rank = (int) Math.ceil(fraction * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	/**
+	 * Prints the recall@k, the number of queries per second and, when the latency of each query was measured, its percentiles
+	 *
+	 * @param results the nearest neighbors found for each query, starting with the closest one
+	 * @param groundTruth the ids of the true nearest neighbors of each query
+	 * @param k the number of nearest neighbors compared
+	 * @param totalMillis the time it took to answer all the queries, in milliseconds
+	 * @param latencies the time each query took in nanoseconds, or null if they were answered together
+	 */
+	public static void report(ArrayList<ArrayList<LabelledPoint>> results, int[][] groundTruth, int k, double totalMillis, long[] latencies){
+		if(groundTruth.length < results.size()){
+			System.out.println("The ground truth only has " + groundTruth.length + " queries, the recall is computed on those");
+		}
+		System.out.println(String.format("recall@%d = %.4f", k, recallAtK(results, groundTruth, k)));
+		System.out.println(String.format("QPS = %.1f queries per second", results.size() / Math.max(totalMillis, 1e-3) * 1000.0));
+
+		if(latencies != null){
+			long[] sorted = latencies.clone();
+			Arrays.sort(sorted);
+			System.out.println(String.format("latency p50 = %.3f ms, p90 = %.3f ms, p99 = %.3f ms, max = %.3f ms",
+				percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.90) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6));
+		}
+	}
+
+}
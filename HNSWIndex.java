@@ -0,0 +1,624 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+This class represents a Hierarchical Navigable Small World (HNSW) graph index, for approximate k nearest neighbors search with
+a high recall in a few milliseconds. Every point is a node of layer 0 and, with a probability decreasing exponentially, of the
+layers above it. In each layer a node is linked to at most M close nodes (2M in layer 0), chosen by the heuristic of the HNSW
+paper so the links go in different directions instead of all towards the same cluster.
+
+A search goes down greedily from the entry point through the upper layers, which have few nodes and long links, then explores
+layer 0 keeping the efSearch nearest nodes found (a PriorityQueue4) and following the links of the nearest node not yet
+expanded, until it is farther than all of them. A larger efSearch gives a better recall for a longer search. The nodes are
+inserted in the same way with efConstruction, on several threads, each neighbor list being locked while it is read or changed.
+A node whose level is above the top layer of the graph is inserted holding a lock shared by all the insertions, as in hnswlib,
+so its new top layers are linked from the current entry point before another node can become a higher one.
+
+*/
+public class HNSWIndex implements PersistentIndex{
+
+	/**
+	 * represents the set of points the index is built on
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * the maximum number of links of a node in the upper layers, and in layer 0
+	 */
+	private int m;
+	private int maxM0;
+
+	/**
+	 * the number of nearest nodes kept while inserting a node
+	 */
+	private int efConstruction;
+
+	/**
+	 * the number of nearest nodes kept by a query when it is not given
+	 */
+	private int efSearch;
+
+	/**
+	 * the vectors of the points, one after the other, the rows of the set being the nodes of the graph
+	 */
+	private float[] vectors;
+
+	/**
+	 * the highest layer of each node
+	 */
+	private int[] levels;
+
+	/**
+	 * the links of the nodes in layer 0, maxM0 + 1 ints per node: the number of links then the linked nodes
+	 */
+	private int[] links0;
+
+	/**
+	 * the links of each node in the layers 1 to its level, m + 1 ints per layer in the same format, null for the nodes of layer 0 only
+	 */
+	private int[][] linksUpper;
+
+	/**
+	 * the node the searches start from, which has the highest level, and that level
+	 */
+	private int entryPoint;
+	private int maxLevel;
+
+	/**
+	 * the locks of the neighbor lists while the graph is built, a node using the lock of index node % LOCK_STRIPES
+	 */
+	private Object[] locks;
+
+	/**
+	 * the lock taken to read the entry point while the graph is built, and held for the whole insertion of a node whose level
+	 * is above the top layer
+	 */
+	private final ReentrantLock insertLock = new ReentrantLock();
+
+	/**
+	 * whether nodes are still being inserted, in which case the neighbor lists are read under their lock
+	 */
+	private volatile boolean building;
+
+	/**
+	 * the nodes visited by the current search of each thread
+	 */
+	private ThreadLocal<VisitedNodes> visited;
+
+	// the maximum number of links of a node in the upper layers when it is not given
+	static final int DEFAULT_M = 16;
+
+	// the number of nearest nodes kept while inserting a node when it is not given
+	static final int DEFAULT_EF_CONSTRUCTION = 200;
+
+	// the number of nearest nodes kept by a query when it is not given
+	static final int DEFAULT_EF_SEARCH = 64;
+
+	// the number of locks shared by the neighbor lists
+	static final int LOCK_STRIPES = 1 << 12;
+
+	// marks the nodes visited by a search, the marks of the previous searches being cleared by changing the current mark
+	private static class VisitedNodes{
+		int[] marks;
+		int mark;
+
+		VisitedNodes(int n){
+			this.marks = new int[n];
+		}
+
+		// starts a new search, where no node is visited
+		void clear(){
+			this.mark++;
+			if(this.mark == 0){
+				Arrays.fill(this.marks, 0);
+				this.mark = 1;
+			}
+		}
+
+		// marks the node as visited and tells whether it already was
+		boolean visit(int node){
+			if(this.marks[node] == this.mark){
+				return true;
+			}
+			this.marks[node] = this.mark;
+			return false;
+		}
+	}
+
+	// the nodes waiting to be expanded by a search, in a binary heap where the node with the smallest key is on top
+	private static class Candidates{
+		double[] keys = new double[64];
+		int[] ids = new int[64];
+		int size;
+
+		void add(int id, double key){
+			if(this.size == this.keys.length){
+				this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+				this.ids = Arrays.copyOf(this.ids, 2 * this.size);
+			}
+			int i = this.size++;
+			while(i > 0 && this.keys[(i - 1) / 2] > key){
+				this.keys[i] = this.keys[(i - 1) / 2];
+				this.ids[i] = this.ids[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			this.keys[i] = key;
+			this.ids[i] = id;
+		}
+
+		// removes the node with the smallest key, read before as ids[0] and keys[0]
+		void removeTop(){
+			this.size--;
+			double key = this.keys[this.size];
+			int id = this.ids[this.size];
+			int i = 0;
+			while(2*i + 1 < this.size){
+				int child = 2*i + 1;
+				if(child + 1 < this.size && this.keys[child + 1] < this.keys[child]){
+					child++;
+				}
+				if(key <= this.keys[child]){
+					break;
+				}
+				this.keys[i] = this.keys[child];
+				this.ids[i] = this.ids[child];
+				i = child;
+			}
+			this.keys[i] = key;
+			this.ids[i] = id;
+		}
+	}
+
+	// class constructor that builds the graph over the given set of points on the given number of threads
+	public HNSWIndex(PointSet ps, int mInput, int efConstructionInput, int efSearchInput, int threads, long seed){
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.m = Math.max(2, mInput);
+		this.maxM0 = 2 * this.m;
+		this.efConstruction = Math.max(this.m, efConstructionInput);
+		this.efSearch = Math.max(1, efSearchInput);
+
+		int n = ps.size();
+		// a mapped set is copied, the graph reads the vectors in a random order
+		this.vectors = ps.getVectors();
+		if(this.vectors == null){
+			this.vectors = new float[n * this.dimension];
+			ps.copyRows(0, n, this.vectors, 0);
+		}
+
+		// the levels are drawn before the build, so they do not depend on the order the threads insert the nodes in
+		Random random = new Random(seed);
+		double levelFactor = 1.0 / Math.log(this.m);
+		this.levels = new int[n];
+		this.links0 = new int[n * (this.maxM0 + 1)];
+		this.linksUpper = new int[n][];
+		for(int i = 0; i < n; i++){
+			this.levels[i] = (int) (-Math.log(1.0 - random.nextDouble()) * levelFactor);
+			if(this.levels[i] > 0){
+				this.linksUpper[i] = new int[this.levels[i] * (this.m + 1)];
+			}
+		}
+
+		this.locks = new Object[LOCK_STRIPES];
+		for(int i = 0; i < LOCK_STRIPES; i++){
+			this.locks[i] = new Object();
+		}
+		this.visited = ThreadLocal.withInitial(() -> new VisitedNodes(n));
+
+		this.entryPoint = -1;
+		this.maxLevel = -1;
+		if(n > 0){
+			this.entryPoint = 0;
+			this.maxLevel = this.levels[0];
+		}
+
+		this.building = true;
+		if(threads <= 1 || n < 2){
+			for(int i = 1; i < n; i++){
+				this.insert(i);
+			}
+		}
+		else{
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			AtomicInteger next = new AtomicInteger(1);
+			ArrayList<Future<?>> workers = new ArrayList<Future<?>>(threads);
+			for(int t = 0; t < threads; t++){
+				workers.add(pool.submit(() -> {
+					for(int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()){
+						this.insert(i);
+					}
+				}));
+			}
+			try{
+				for(Future<?> worker : workers){
+					worker.get();
+				}
+			}
+			catch(InterruptedException | ExecutionException exception){
+				throw new IllegalStateException("the construction of the graph failed", exception);
+			}
+			finally{
+				pool.shutdown();
+			}
+		}
+		this.building = false;
+
+	}
+
+	// constructs the graph with the default parameters, on as many threads as there are processors
+	public HNSWIndex(PointSet ps){
+		this(ps, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH, Runtime.getRuntime().availableProcessors(), 42);
+	}
+
+	// class constructor that reads the graph saved in an index file of the given set of points
+	public HNSWIndex(PointSet ps, IndexFile file) throws IOException{
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.m = file.getInt("M");
+		this.maxM0 = 2 * this.m;
+		this.efConstruction = file.getInt("efConstruction");
+		this.efSearch = file.getInt("efSearch");
+		this.entryPoint = file.getInt("entryPoint");
+		this.maxLevel = file.getInt("maxLevel");
+
+		int n = ps.size();
+		this.vectors = ps.getVectors();
+		if(this.vectors == null){
+			this.vectors = new float[n * this.dimension];
+			ps.copyRows(0, n, this.vectors, 0);
+		}
+
+		this.levels = file.getInts("levels");
+		this.links0 = file.getInts("links0");
+		// the links of the upper layers were saved one node after the other
+		int[] upper = file.getInts("linksUpper");
+		this.linksUpper = new int[n][];
+		int position = 0;
+		for(int i = 0; i < n; i++){
+			if(this.levels[i] > 0){
+				this.linksUpper[i] = Arrays.copyOfRange(upper, position, position + this.levels[i] * (this.m + 1));
+				position += this.linksUpper[i].length;
+			}
+		}
+
+		this.locks = new Object[LOCK_STRIPES];
+		for(int i = 0; i < LOCK_STRIPES; i++){
+			this.locks[i] = new Object();
+		}
+		this.visited = ThreadLocal.withInitial(() -> new VisitedNodes(n));
+		this.building = false;
+
+	}
+
+	/**
+	 * Saves the graph to an index file, the vectors being read again from the set of points when it is opened
+	 *
+	 * @param filename the path of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String filename) throws IOException{
+		int total = 0;
+		for(int[] links : this.linksUpper){
+			total += links == null ? 0 : links.length;
+		}
+		int[] upper = new int[total];
+		int position = 0;
+		for(int[] links : this.linksUpper){
+			if(links != null){
+				System.arraycopy(links, 0, upper, position, links.length);
+				position += links.length;
+			}
+		}
+
+		IndexFile.Writer out = new IndexFile.Writer("hnsw", this.pointsS);
+		out.putInt("M", this.m);
+		out.putInt("efConstruction", this.efConstruction);
+		out.putInt("efSearch", this.efSearch);
+		out.putInt("entryPoint", this.entryPoint);
+		out.putInt("maxLevel", this.maxLevel);
+		out.putInts("levels", this.levels);
+		out.putInts("links0", this.links0);
+		out.putInts("linksUpper", upper);
+		out.write(filename);
+	}
+
+	// gives the array holding the links of the node in the layer
+	private int[] linkArray(int node, int layer){
+		return layer == 0 ? this.links0 : this.linksUpper[node];
+	}
+
+	// gives the index, in its array, of the number of links of the node in the layer, the links following it
+	private int linkOffset(int node, int layer){
+		return layer == 0 ? node * (this.maxM0 + 1) : (layer - 1) * (this.m + 1);
+	}
+
+	/**
+	 * Copies the links of the node in the layer, under its lock while the graph is built
+	 *
+	 * @param buffer receives the linked nodes, it must hold maxM0 of them
+	 * @return the number of links
+	 */
+	private int readLinks(int node, int layer, int[] buffer){
+		int[] array = this.linkArray(node, layer);
+		int offset = this.linkOffset(node, layer);
+		if(this.building){
+			synchronized(this.locks[node % LOCK_STRIPES]){
+				int count = array[offset];
+				System.arraycopy(array, offset + 1, buffer, 0, count);
+				return count;
+			}
+		}
+		int count = array[offset];
+		System.arraycopy(array, offset + 1, buffer, 0, count);
+		return count;
+	}
+
+	// gives the squared distance between two nodes
+	private double squaredDistance(int a, int b){
+		int d = this.dimension;
+		return LabelledPoint.squaredDistance(this.vectors, a * d, this.vectors, b * d, d);
+	}
+
+	/**
+	 * Goes from the entry node to the node of the layer nearest to the query, moving to the nearest linked node while it is
+	 * nearer than the current one
+	 *
+	 * @param evaluations if not null, its first element receives the number of distances evaluated
+	 * @return the nearest node found
+	 */
+	private int greedySearch(float[] query, int queryOff, int entry, int layer, int[] buffer, long[] evaluations){
+		int d = this.dimension;
+		int current = entry;
+		double currentKey = LabelledPoint.squaredDistance(this.vectors, current * d, query, queryOff, d);
+		boolean moved = true;
+		while(moved){
+			moved = false;
+			int count = this.readLinks(current, layer, buffer);
+			if(evaluations != null){
+				evaluations[0] += count;
+			}
+			for(int i = 0; i < count; i++){
+				double key = LabelledPoint.squaredDistance(this.vectors, buffer[i] * d, query, queryOff, d, currentKey);
+				if(key < currentKey){
+					currentKey = key;
+					current = buffer[i];
+					moved = true;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Explores the layer from the entry node, keeping the ef nodes nearest to the query
+	 *
+	 * @param evaluations if not null, its first element receives the number of distances evaluated
+	 * @return the ef nearest nodes found, the keys being squared distances
+	 */
+	private PriorityQueue4 searchLayer(float[] query, int queryOff, int entry, int ef, int layer, int[] buffer, long[] evaluations){
+		int d = this.dimension;
+		VisitedNodes visitedNodes = this.visited.get();
+		visitedNodes.clear();
+
+		PriorityQueue4 nearest = new PriorityQueue4(ef);
+		Candidates candidates = new Candidates();
+		double entryKey = LabelledPoint.squaredDistance(this.vectors, entry * d, query, queryOff, d);
+		visitedNodes.visit(entry);
+		nearest.offer(entry, entryKey);
+		candidates.add(entry, entryKey);
+
+		while(candidates.size > 0){
+			int node = candidates.ids[0];
+			double key = candidates.keys[0];
+			// every node left to expand is farther than the ef nearest nodes found
+			if(key > nearest.bound()){
+				break;
+			}
+			candidates.removeTop();
+
+			int count = this.readLinks(node, layer, buffer);
+			for(int i = 0; i < count; i++){
+				int neighbor = buffer[i];
+				if(visitedNodes.visit(neighbor)){
+					continue;
+				}
+				if(evaluations != null){
+					evaluations[0]++;
+				}
+				double bound = nearest.bound();
+				double neighborKey = LabelledPoint.squaredDistance(this.vectors, neighbor * d, query, queryOff, d, bound);
+				if(neighborKey < bound){
+					nearest.offer(neighbor, neighborKey);
+					candidates.add(neighbor, neighborKey);
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Chooses at most max links among the candidates, from the nearest: a candidate is kept only if it is nearer to the base
+	 * node than to every candidate already kept (the heuristic of the HNSW paper)
+	 *
+	 * @param ids the candidates, starting with the nearest to the base node, the kept ones are moved to the start
+	 * @param keys their squared distances from the base node
+	 * @return the number of candidates kept
+	 */
+	private int selectNeighbors(int[] ids, double[] keys, int count, int max){
+		int kept = 0;
+		for(int i = 0; i < count && kept < max; i++){
+			boolean good = true;
+			for(int j = 0; j < kept; j++){
+				if(this.squaredDistance(ids[i], ids[j]) < keys[i]){
+					good = false;
+					break;
+				}
+			}
+			if(good){
+				ids[kept] = ids[i];
+				keys[kept] = keys[i];
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	// inserts the node in the graph, from its level down to layer 0
+	private void insert(int node){
+		int d = this.dimension;
+		int level = this.levels[node];
+		int[] buffer = new int[this.maxM0 + 1];
+
+		// a node reaching above the top layer keeps the lock until it is the entry point, so no other node can become a higher
+		// one meanwhile and leave layers between them unlinked
+		this.insertLock.lock();
+		int entry = this.entryPoint;
+		int topLevel = this.maxLevel;
+		boolean top = level > topLevel;
+		if(!top){
+			this.insertLock.unlock();
+		}
+		try{
+			for(int layer = topLevel; layer > level; layer--){
+				entry = this.greedySearch(this.vectors, node * d, entry, layer, buffer, null);
+			}
+
+			for(int layer = Math.min(level, topLevel); layer >= 0; layer--){
+				PriorityQueue4 nearest = this.searchLayer(this.vectors, node * d, entry, this.efConstruction, layer, buffer, null);
+				int size = nearest.size();
+				int[] ids = new int[size];
+				double[] keys = new double[size];
+				nearest.drainSorted(ids, keys);
+				entry = ids[0];
+
+				int max = layer == 0 ? this.maxM0 : this.m;
+				int kept = this.selectNeighbors(ids, keys, size, this.m);
+
+				int[] array = this.linkArray(node, layer);
+				int offset = this.linkOffset(node, layer);
+				synchronized(this.locks[node % LOCK_STRIPES]){
+					array[offset] = kept;
+					System.arraycopy(ids, 0, array, offset + 1, kept);
+				}
+
+				for(int i = 0; i < kept; i++){
+					this.addLink(ids[i], node, layer, max);
+				}
+			}
+
+			// the node becomes the entry point of the searches if it has the highest level, all the others reaching below it
+			if(top){
+				this.maxLevel = level;
+				this.entryPoint = node;
+			}
+		}
+		finally{
+			if(top){
+				this.insertLock.unlock();
+			}
+		}
+	}
+
+	// links the node to the new node in the layer, choosing its links again with the heuristic when it has too many
+	private void addLink(int node, int newNode, int layer, int max){
+		int[] array = this.linkArray(node, layer);
+		int offset = this.linkOffset(node, layer);
+
+		synchronized(this.locks[node % LOCK_STRIPES]){
+			int count = array[offset];
+			if(count < max){
+				array[offset + 1 + count] = newNode;
+				array[offset] = count + 1;
+				return;
+			}
+
+			// the links and the new node, sorted by their distance from the node
+			PriorityQueue4 sorted = new PriorityQueue4(count + 1);
+			for(int i = 0; i < count; i++){
+				sorted.offer(array[offset + 1 + i], this.squaredDistance(node, array[offset + 1 + i]));
+			}
+			sorted.offer(newNode, this.squaredDistance(node, newNode));
+			int[] ids = new int[count + 1];
+			double[] keys = new double[count + 1];
+			sorted.drainSorted(ids, keys);
+
+			int kept = this.selectNeighbors(ids, keys, count + 1, max);
+			System.arraycopy(ids, 0, array, offset + 1, kept);
+			array[offset] = kept;
+		}
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query, keeping the default number of nearest nodes
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		return this.findKNN(query, k, this.efSearch);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query, exploring layer 0 while keeping the ef nearest nodes found
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @param ef the number of nearest nodes kept, at least k
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k, int ef){
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(k);
+		if(this.entryPoint < 0){
+			return finalKNN;
+		}
+
+		float[] queryData = query.getData();
+		int queryOff = query.getOffset();
+		int[] buffer = new int[this.maxM0 + 1];
+
+		// the distances evaluated by the query, the one to the entry point of each layer included
+		long[] evaluations = {this.maxLevel + 1};
+		int entry = this.entryPoint;
+		for(int layer = this.maxLevel; layer > 0; layer--){
+			entry = this.greedySearch(queryData, queryOff, entry, layer, buffer, evaluations);
+		}
+		PriorityQueue4 nearest = this.searchLayer(queryData, queryOff, entry, Math.max(ef, k), 0, buffer, evaluations);
+		nearest.countWork(evaluations[0]);
+
+		int size = nearest.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		nearest.drainSorted(ids, keys);
+
+		for(int i = 0; i < Math.min(k, size); i++){
+			LabelledPoint point = this.pointsS.getPoint(ids[i]);
+			point.setKey(Math.sqrt(keys[i]));
+			finalKNN.add(point);
+		}
+		return finalKNN;
+	}
+
+	/**
+	 * Changes the number of nearest nodes kept by the queries that do not give it
+	 *
+	 * @param efSearchInput the number of nearest nodes kept
+	 */
+	public void setEfSearch(int efSearchInput){
+		this.efSearch = Math.max(1, efSearchInput);
+	}
+
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+This class represents an inverted file (IVF) index, for approximate k nearest neighbors search on large sets of points. A
+coarse quantizer of nlist centroids is trained by k-means on a random sample of the points, then every point is assigned to
+the inverted list of its nearest centroid, the vectors of a list being stored contiguously.
+
+A query is compared to the centroids first, and only the points of the lists of its nprobe nearest centroids are scanned, with
+the same bounded distance and PriorityQueue4 as a linear scan. The nearest neighbors of the query may be in lists that are not
+scanned, so a larger nprobe gives a better recall for a longer search, nprobe = nlist being a linear scan.
+
+*/
+public class IVFIndex implements PersistentIndex{
+
+	/**
+	 * represents the set of points the index is built on
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * the number of centroids, and of inverted lists
+	 */
+	private int nlist;
+
+	/**
+	 * the number of lists scanned for a query when it is not given
+	 */
+	private int nprobe;
+
+	/**
+	 * the centroids of the coarse quantizer, one after the other
+	 */
+	private float[] centroids;
+
+	/**
+	 * the vectors of the points, list after list, and the row of each of them in the set of points
+	 */
+	private float[] vectors;
+	private int[] rows;
+
+	/**
+	 * the points of the list c are the indexes [listStart[c], listStart[c + 1]) of the vectors
+	 */
+	private int[] listStart;
+
+	// the number of lists scanned for a query when it is not given
+	static final int DEFAULT_NPROBE = 8;
+
+	// the number of points sampled per centroid to train the quantizer when it is not given
+	static final int DEFAULT_SAMPLE_PER_LIST = 64;
+
+	// the number of k-means iterations when it is not given
+	static final int DEFAULT_ITERATIONS = 10;
+
+	// class constructor that trains the quantizer on a sample of sampleSize points and fills the inverted lists
+	public IVFIndex(PointSet ps, int nlistInput, int nprobeInput, int sampleSize, int iterations, long seed){
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		int n = ps.size();
+		// an empty set of points has no list
+		this.nlist = Math.min(Math.max(1, nlistInput), n);
+		this.nprobe = Math.max(1, nprobeInput);
+
+		// the sample is in a random order, so the k-means starts from nlist distinct points
+		Random random = new Random(seed);
+		int size = Math.max(this.nlist, Math.min(sampleSize, n));
+		this.centroids = KMeans.train(KMeans.sample(ps, size, random), size, this.dimension, this.nlist, iterations, random);
+		this.fillLists();
+
+	}
+
+	// constructs the index with about the square root of the number of points as lists, and the default training parameters
+	public IVFIndex(PointSet ps){
+		this(ps, defaultNlist(ps.size()), DEFAULT_NPROBE, DEFAULT_SAMPLE_PER_LIST * defaultNlist(ps.size()), DEFAULT_ITERATIONS, 42);
+	}
+
+	// class constructor that reads the index saved in an index file of the given set of points
+	public IVFIndex(PointSet ps, IndexFile file) throws IOException{
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.nlist = file.getInt("nlist");
+		this.nprobe = file.getInt("nprobe");
+		this.centroids = file.getFloats("centroids");
+		this.vectors = file.getFloats("vectors");
+		this.rows = file.getInts("rows");
+		this.listStart = file.getInts("listStart");
+
+	}
+
+	/**
+	 * Saves the quantizer and the inverted lists to an index file
+	 *
+	 * @param filename the path of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String filename) throws IOException{
+		IndexFile.Writer out = new IndexFile.Writer("ivf", this.pointsS);
+		out.putInt("nlist", this.nlist);
+		out.putInt("nprobe", this.nprobe);
+		out.putFloats("centroids", this.centroids);
+		out.putInts("listStart", this.listStart);
+		out.putInts("rows", this.rows);
+		out.putFloats("vectors", this.vectors);
+		out.write(filename);
+	}
+
+	// the number of lists when it is not given, about the square root of the number of points
+	static int defaultNlist(int n){
+		return Math.max(1, (int) Math.sqrt(n));
+	}
+
+	// gives the index of the centroid nearest to the vector starting at off in data
+	private int nearestCentroid(float[] data, int off){
+		return KMeans.nearest(this.centroids, this.nlist, this.dimension, data, off);
+	}
+
+	// assigns every point to the list of its nearest centroid, then copies the vectors list after list
+	private void fillLists(){
+		int n = this.pointsS.size();
+		int d = this.dimension;
+
+		int[] assignment = new int[n];
+		this.listStart = new int[this.nlist + 1];
+		this.pointsS.scan(0, n, (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				assignment[first + r] = this.nearestCentroid(data, off + r*d);
+				this.listStart[assignment[first + r] + 1]++;
+			}
+		});
+		for(int c = 0; c < this.nlist; c++){
+			this.listStart[c + 1] += this.listStart[c];
+		}
+
+		// next[c] is where the next point of the list c goes
+		int[] next = this.listStart.clone();
+		this.vectors = new float[n * d];
+		this.rows = new int[n];
+		this.pointsS.scan(0, n, (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				int position = next[assignment[first + r]]++;
+				System.arraycopy(data, off + r*d, this.vectors, position * d, d);
+				this.rows[position] = first + r;
+			}
+		});
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query, scanning the default number of lists
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		return this.findKNN(query, k, this.nprobe);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query among the points of the lists of its nprobe nearest centroids
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @param probes the number of lists scanned
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k, int probes){
+		int d = this.dimension;
+		float[] queryData = query.getData();
+		int queryOff = query.getOffset();
+
+		// the nearest centroids, the keys being squared distances
+		PriorityQueue4 nearestLists = new PriorityQueue4(Math.max(1, Math.min(probes, this.nlist)));
+		for(int c = 0; c < this.nlist; c++){
+			double bound = nearestLists.bound();
+			double squared = LabelledPoint.squaredDistance(this.centroids, c * d, queryData, queryOff, d, bound);
+			if(squared < bound){
+				nearestLists.offer(c, squared);
+			}
+		}
+		nearestLists.countWork(this.nlist);
+		int[] lists = new int[nearestLists.size()];
+		nearestLists.drainSorted(lists, new double[lists.length]);
+
+		PriorityQueue4 pq = new PriorityQueue4(k);
+		long evaluated = 0;
+		for(int c : lists){
+			evaluated += this.listStart[c + 1] - this.listStart[c];
+			for(int i = this.listStart[c]; i < this.listStart[c + 1]; i++){
+				double bound = pq.bound();
+				double squared = LabelledPoint.squaredDistance(this.vectors, i * d, queryData, queryOff, d, bound);
+				if(squared < bound){
+					pq.offer(i, squared);
+				}
+			}
+		}
+		pq.countWork(evaluated);
+
+		int size = pq.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		pq.drainSorted(ids, keys);
+
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(size);
+		for(int i = 0; i < size; i++){
+			LabelledPoint point = this.pointsS.getPoint(this.rows[ids[i]]);
+			point.setKey(Math.sqrt(keys[i]));
+			finalKNN.add(point);
+		}
+		return finalKNN;
+	}
+
+	/**
+	 * Changes the number of lists scanned for the queries that do not give it
+	 *
+	 * @param nprobeInput the number of lists scanned
+	 */
+	public void setNprobe(int nprobeInput){
+		this.nprobe = Math.max(1, nprobeInput);
+	}
+
+	// gets the number of lists
+	public int getNlist(){
+		return this.nlist;
+	}
+
+}
@@ -0,0 +1,501 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+This class represents the binary file an index is saved to, so it can be opened again without being rebuilt. The file is
+little-endian, like the fvecs files, and made of:
+- a header: the magic number "KNNI", the version of the format, the number of points and the dimension of the set the index
+  was built on, the fingerprint of that set, and the name of the index (its name in the index specs, e.g. "hnsw")
+- a table of the sections: the name, the type of the values (int, float, double, byte or short), the number of values and
+  the position in the file of each section
+- the sections, each one a primitive array of the index (graph links, inverted lists, codebooks, vectors...) starting on a
+  multiple of 64 bytes
+
+A file is opened by mapping it in memory, and the arrays are copied out of the mapping in bulk, without parsing any value, so
+opening an index costs about the time of reading its bytes from the page cache. The index then needs the same set of points
+it was built on (e.g. the base fvecs file opened with --mmap), which is checked against the header: the number of points, the
+dimension, and a fingerprint hashing the labels and vectors of SAMPLE_ROWS rows spread over the set, so a set of the same shape
+is refused unless it matches the one of the index on every row sampled. Hashing every row would cost a pass over the set each
+time an index is opened.
+
+*/
+public class IndexFile{
+
+	/**
+	 * the first 4 bytes of an index file, "KNNI"
+	 */
+	static final int MAGIC = 0x494E4E4B;
+
+	/**
+	 * the version of the format, written in every file and checked when a file is opened
+	 */
+	static final int VERSION = 2;
+
+	// the number of rows of the set of points hashed in its fingerprint
+	static final int SAMPLE_ROWS = 1024;
+
+	// the sections start on a multiple of this number of bytes
+	static final int ALIGNMENT = 64;
+
+	// the largest mapping of a section, a larger section is mapped in several parts
+	static final long MAP_BYTES = 1L << 30;
+
+	// the types of the values of a section
+	static final byte INTS = 1;
+	static final byte FLOATS = 2;
+	static final byte DOUBLES = 3;
+	static final byte BYTES = 4;
+	static final byte SHORTS = 5;
+
+	// an array of the index, mapped in parts of at most MAP_BYTES bytes
+	private static class Section{
+		byte type;
+		long length;                // the number of values
+		MappedByteBuffer[] parts;
+	}
+
+	/**
+	 * the name of the index saved in the file
+	 */
+	private String name;
+
+	/**
+	 * the number of points and the dimension of the set the index was built on
+	 */
+	private int count;
+	private int dimension;
+
+	/**
+	 * the fingerprint of the set the index was built on
+	 */
+	private long fingerprint;
+
+	/**
+	 * the sections of the file, by name
+	 */
+	private HashMap<String, Section> sections;
+
+	// the size in bytes of a value of the type
+	private static int valueBytes(byte type){
+		return type == DOUBLES ? 8 : type == SHORTS ? 2 : type == BYTES ? 1 : 4;
+	}
+
+	// class constructor that maps the sections of the file, checking its header
+	private IndexFile(String filename) throws IOException{
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			long fileLength = channel.size();
+			// the header and the table of the sections are small, they are read through a mapping of the start of the file
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileLength, MAP_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+			if(fileLength < 4 * 4 + 8 || header.getInt() != MAGIC){
+				throw new IOException("Error! " + filename + " is not an index file");
+			}
+			int version = header.getInt();
+			if(version != VERSION){
+				throw new IOException("Error! " + filename + " has version " + version + " of the index format, version " + VERSION + " is expected");
+			}
+
+			this.count = header.getInt();
+			this.dimension = header.getInt();
+			this.fingerprint = header.getLong();
+			this.name = readString(header);
+
+			int numSections = header.getInt();
+			this.sections = new HashMap<String, Section>();
+			for(int s = 0; s < numSections; s++){
+				String sectionName = readString(header);
+				Section section = new Section();
+				section.type = header.get();
+				section.length = header.getLong();
+				long offset = header.getLong();
+
+				long bytes = section.length * valueBytes(section.type);
+				if(offset < 0 || offset + bytes > fileLength){
+					throw new IOException("Error! The section " + sectionName + " goes past the end of " + filename);
+				}
+				int numParts = (int) ((bytes + MAP_BYTES - 1) / MAP_BYTES);
+				section.parts = new MappedByteBuffer[numParts];
+				for(int p = 0; p < numParts; p++){
+					long start = offset + p * MAP_BYTES;
+					section.parts[p] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_BYTES, offset + bytes - start));
+				}
+				this.sections.put(sectionName, section);
+			}
+		}
+	}
+
+	/**
+	 * Opens an index file, checking that it was saved from an index of the given set of points
+	 *
+	 * @param filename the path of the file
+	 * @param points the set of points of the index
+	 * @return the file, whose sections are read by the constructor of the index
+	 * @throws IOException if the file cannot be read, is not an index file of this version, or was built on another set
+	 */
+	public static IndexFile open(String filename, PointSet points) throws IOException{
+		IndexFile file = new IndexFile(filename);
+		if(file.count != points.size() || file.dimension != points.getDimension()){
+			throw new IOException("Error! " + filename + " indexes " + file.count + " points of dimension " + file.dimension
+				+ ", the set has " + points.size() + " points of dimension " + points.getDimension());
+		}
+		if(file.fingerprint != fingerprint(points)){
+			throw new IOException("Error! " + filename + " indexes another set of " + file.count + " points of dimension " + file.dimension
+				+ ", its fingerprint does not match the set");
+		}
+		return file;
+	}
+
+	/**
+	 * Hashes the number of points, the dimension, and the labels and coordinates of SAMPLE_ROWS rows spread evenly over the set
+	 * (the first and the last included), with 64-bit FNV-1a
+	 *
+	 * @param points the set of points
+	 * @return the fingerprint of the set
+	 */
+	public static long fingerprint(PointSet points){
+		int n = points.size();
+		int d = points.getDimension();
+		long hash = 0xcbf29ce484222325L;
+		hash = mix(hash, n);
+		hash = mix(hash, d);
+
+		int samples = Math.min(n, SAMPLE_ROWS);
+		float[] row = new float[d];
+		for(int s = 0; s < samples; s++){
+			int i = samples == 1 ? 0 : (int) ((long) s * (n - 1) / (samples - 1));
+			points.copyRows(i, 1, row, 0);
+			hash = mix(hash, points.getLabel(i));
+			for(int j = 0; j < d; j++){
+				hash = mix(hash, Float.floatToIntBits(row[j]));
+			}
+		}
+		return hash;
+	}
+
+	// adds the 4 bytes of an int to an FNV-1a hash
+	private static long mix(long hash, int value){
+		for(int b = 0; b < 4; b++){
+			hash ^= (value >>> (8 * b)) & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Opens the index saved in a file, whatever its kind
+	 *
+	 * @param filename the path of the file
+	 * @param points the set of points of the index
+	 * @return the index
+	 * @throws IOException if the file cannot be read or holds an unknown index
+	 */
+	public static KNNSearcher load(String filename, PointSet points) throws IOException{
+		IndexFile file = open(filename, points);
+		switch(file.getName()){
+			case "kd":
+				return new KDTree(points, file);
+			case "vp":
+				return new VPTree(points, file);
+			case "ivf":
+				return new IVFIndex(points, file);
+			case "hnsw":
+				return new HNSWIndex(points, file);
+			case "pq":
+				return new ProductQuantizationIndex(points, file);
+			case "sq":
+				return new ScalarQuantizedIndex(points, file);
+			default:
+				throw new IOException("Error! Unknown index " + file.getName() + " in " + filename);
+		}
+	}
+
+	// reads a string written as its number of UTF-8 bytes then the bytes
+	private static String readString(ByteBuffer buffer){
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// gets the name of the index saved in the file
+	public String getName(){
+		return this.name;
+	}
+
+	// gets the section, checking the type of its values
+	private Section section(String sectionName, byte type) throws IOException{
+		Section section = this.sections.get(sectionName);
+		if(section == null || section.type != type){
+			throw new IOException("Error! The index file has no section " + sectionName + " of the expected type");
+		}
+		if(section.length > Integer.MAX_VALUE){
+			throw new IOException("Error! The section " + sectionName + " is too large for an array");
+		}
+		return section;
+	}
+
+	/**
+	 * Copies the section out of the mapping, part by part
+	 *
+	 * @return the ints of the section
+	 */
+	public int[] getInts(String sectionName) throws IOException{
+		Section section = this.section(sectionName, INTS);
+		int[] values = new int[(int) section.length];
+		int position = 0;
+		for(MappedByteBuffer part : section.parts){
+			int length = part.capacity() / 4;
+			part.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, position, length);
+			position += length;
+		}
+		return values;
+	}
+
+	/**
+	 * Copies the section out of the mapping, part by part
+	 *
+	 * @return the floats of the section
+	 */
+	public float[] getFloats(String sectionName) throws IOException{
+		Section section = this.section(sectionName, FLOATS);
+		float[] values = new float[(int) section.length];
+		int position = 0;
+		for(MappedByteBuffer part : section.parts){
+			int length = part.capacity() / 4;
+			part.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values, position, length);
+			position += length;
+		}
+		return values;
+	}
+
+	/**
+	 * Copies the section out of the mapping, part by part
+	 *
+	 * @return the doubles of the section
+	 */
+	public double[] getDoubles(String sectionName) throws IOException{
+		Section section = this.section(sectionName, DOUBLES);
+		double[] values = new double[(int) section.length];
+		int position = 0;
+		for(MappedByteBuffer part : section.parts){
+			int length = part.capacity() / 8;
+			part.duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values, position, length);
+			position += length;
+		}
+		return values;
+	}
+
+	/**
+	 * Copies the section out of the mapping, part by part
+	 *
+	 * @return the bytes of the section
+	 */
+	public byte[] getBytes(String sectionName) throws IOException{
+		Section section = this.section(sectionName, BYTES);
+		byte[] values = new byte[(int) section.length];
+		int position = 0;
+		for(MappedByteBuffer part : section.parts){
+			int length = part.capacity();
+			part.duplicate().get(values, position, length);
+			position += length;
+		}
+		return values;
+	}
+
+	/**
+	 * Copies the section out of the mapping, part by part
+	 *
+	 * @return the shorts of the section
+	 */
+	public short[] getShorts(String sectionName) throws IOException{
+		Section section = this.section(sectionName, SHORTS);
+		short[] values = new short[(int) section.length];
+		int position = 0;
+		for(MappedByteBuffer part : section.parts){
+			int length = part.capacity() / 2;
+			part.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(values, position, length);
+			position += length;
+		}
+		return values;
+	}
+
+	// gets a section holding a single int, a parameter of the index
+	public int getInt(String sectionName) throws IOException{
+		int[] values = this.getInts(sectionName);
+		if(values.length != 1){
+			throw new IOException("Error! The section " + sectionName + " is not a single int");
+		}
+		return values[0];
+	}
+
+	/*
+	This class represents an index file being written: the index adds its arrays as named sections, then the file is written
+	in one go.
+	*/
+	public static class Writer{
+
+		/**
+		 * the name of the index, and the number of points, dimension and fingerprint of its set
+		 */
+		private String name;
+		private int count;
+		private int dimension;
+		private long fingerprint;
+
+		/**
+		 * the arrays of the sections by name, in the order they are written
+		 */
+		private LinkedHashMap<String, Object> arrays = new LinkedHashMap<String, Object>();
+
+		// class constructor that initializes all the instance variables
+		public Writer(String nameInput, PointSet points){
+			this.name = nameInput;
+			this.count = points.size();
+			this.dimension = points.getDimension();
+			this.fingerprint = fingerprint(points);
+
+		}
+
+		// adds the array as a section, the array must not change until the file is written
+		public void putInts(String sectionName, int[] values){
+			this.arrays.put(sectionName, values);
+		}
+
+		public void putFloats(String sectionName, float[] values){
+			this.arrays.put(sectionName, values);
+		}
+
+		public void putDoubles(String sectionName, double[] values){
+			this.arrays.put(sectionName, values);
+		}
+
+		public void putBytes(String sectionName, byte[] values){
+			this.arrays.put(sectionName, values);
+		}
+
+		public void putShorts(String sectionName, short[] values){
+			this.arrays.put(sectionName, values);
+		}
+
+		// adds a section holding a single int, a parameter of the index
+		public void putInt(String sectionName, int value){
+			this.arrays.put(sectionName, new int[] {value});
+		}
+
+		// gives the type and the number of values of an array
+		private static byte typeOf(Object array){
+			if(array instanceof int[]){
+				return INTS;
+			}
+			else if(array instanceof float[]){
+				return FLOATS;
+			}
+			else if(array instanceof double[]){
+				return DOUBLES;
+			}
+			else if(array instanceof byte[]){
+				return BYTES;
+			}
+			return SHORTS;
+		}
+
+		private static int lengthOf(Object array){
+			return java.lang.reflect.Array.getLength(array);
+		}
+
+		// the number of bytes of a string written as its length then its UTF-8 bytes
+		private static int stringBytes(String s){
+			return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+		}
+
+		private static void putString(ByteBuffer buffer, String s){
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			buffer.putShort((short) bytes.length);
+			buffer.put(bytes);
+		}
+
+		// rounds the position up to the next multiple of ALIGNMENT
+		private static long align(long position){
+			return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+		}
+
+		/**
+		 * Writes the header, the table of the sections and the sections, replacing the file if it exists
+		 *
+		 * @param filename the path of the file
+		 * @throws IOException if the file cannot be written
+		 */
+		public void write(String filename) throws IOException{
+			int headerBytes = 4 * 4 + 8 + stringBytes(this.name) + 4;
+			for(String sectionName : this.arrays.keySet()){
+				headerBytes += stringBytes(sectionName) + 1 + 8 + 8;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(this.count);
+			header.putInt(this.dimension);
+			header.putLong(this.fingerprint);
+			putString(header, this.name);
+			header.putInt(this.arrays.size());
+
+			long position = align(headerBytes);
+			for(Map.Entry<String, Object> entry : this.arrays.entrySet()){
+				byte type = typeOf(entry.getValue());
+				int length = lengthOf(entry.getValue());
+				putString(header, entry.getKey());
+				header.put(type);
+				header.putLong(length);
+				header.putLong(position);
+				position = align(position + (long) length * valueBytes(type));
+			}
+			header.flip();
+
+			try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+				channel.write(header, 0);
+				position = align(headerBytes);
+
+				// the arrays are converted to little-endian bytes a block at a time
+				ByteBuffer block = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+				for(Object array : this.arrays.values()){
+					byte type = typeOf(array);
+					int length = lengthOf(array);
+					int perBlock = block.capacity() / valueBytes(type);
+					for(int first = 0; first < length; first += perBlock){
+						int values = Math.min(perBlock, length - first);
+						block.clear();
+						if(type == INTS){
+							block.asIntBuffer().put((int[]) array, first, values);
+						}
+						else if(type == FLOATS){
+							block.asFloatBuffer().put((float[]) array, first, values);
+						}
+						else if(type == DOUBLES){
+							block.asDoubleBuffer().put((double[]) array, first, values);
+						}
+						else if(type == BYTES){
+							block.put((byte[]) array, first, values);
+						}
+						else{
+							block.asShortBuffer().put((short[]) array, first, values);
+						}
+						block.position(0).limit(values * valueBytes(type));
+						while(block.hasRemaining()){
+							position += channel.write(block, position);
+						}
+					}
+					position = align(position);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+This class represents a KD-tree index over a set of points, for exact k nearest neighbors search in low to moderate dimensions
+(under about 20, past which almost every leaf has to be visited). Each internal node splits its points at the median of the
+coordinate with the largest spread, and the leaves are buckets of at most leafSize points. The vectors are copied in the order
+of the leaves, so the points of a leaf are contiguous in memory.
+
+The search goes down to the leaf of the query first, then backtracks into the other side of a split only when the distance
+from the query to the splitting plane is less than the distance of the k-th nearest point found so far (the bound of the
+PriorityQueue4 holding the nearest points).
+
+*/
+public class KDTree implements PersistentIndex{
+
+	/**
+	 * represents the set of points the tree is built on
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * the maximum number of points in a leaf
+	 */
+	private int leafSize;
+
+	/**
+	 * the vectors of the points, in the order of the leaves
+	 */
+	private float[] vectors;
+
+	/**
+	 * the row, in the set of points, of each vector of the tree
+	 */
+	private int[] rows;
+
+	/**
+	 * the nodes of the tree, stored in parallel arrays. an internal node has the coordinate and the value of its split and its
+	 * two children, a leaf has -1 as its split coordinate and the range [start, end) of its vectors
+	 */
+	private int[] splitDim;
+	private float[] splitValue;
+	private int[] left;
+	private int[] right;
+	private int[] start;
+	private int[] end;
+	private int numNodes;
+
+	/**
+	 * the index of the root node
+	 */
+	private int root;
+
+	// the maximum number of points in a leaf when it is not given
+	static final int DEFAULT_LEAF_SIZE = 16;
+
+	// class constructor that builds the tree over the given set of points
+	public KDTree(PointSet ps, int leafSizeInput){
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.leafSize = Math.max(1, leafSizeInput);
+
+		int n = ps.size();
+		int d = this.dimension;
+
+		// the vectors are first copied in the order of the set, the permutation is then sorted in place by the build
+		float[] original = new float[n * d];
+		ps.copyRows(0, n, original, 0);
+		int[] perm = new int[n];
+		for(int i = 0; i < n; i++){
+			perm[i] = i;
+		}
+
+		int capacity = 2 * (n / this.leafSize + 1);
+		this.splitDim = new int[capacity];
+		this.splitValue = new float[capacity];
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.start = new int[capacity];
+		this.end = new int[capacity];
+		this.numNodes = 0;
+		this.root = this.build(original, perm, 0, n);
+
+		this.vectors = new float[n * d];
+		for(int i = 0; i < n; i++){
+			System.arraycopy(original, perm[i] * d, this.vectors, i * d, d);
+		}
+		this.rows = perm;
+
+	}
+
+	// constructs the tree with the default leaf size
+	public KDTree(PointSet ps){
+		this(ps, DEFAULT_LEAF_SIZE);
+	}
+
+	// class constructor that reads the tree saved in an index file of the given set of points
+	public KDTree(PointSet ps, IndexFile file) throws IOException{
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.leafSize = file.getInt("leafSize");
+		this.vectors = file.getFloats("vectors");
+		this.rows = file.getInts("rows");
+		this.splitDim = file.getInts("splitDim");
+		this.splitValue = file.getFloats("splitValue");
+		this.left = file.getInts("left");
+		this.right = file.getInts("right");
+		this.start = file.getInts("start");
+		this.end = file.getInts("end");
+		this.numNodes = this.splitDim.length;
+		this.root = file.getInt("root");
+
+	}
+
+	/**
+	 * Saves the tree to an index file, the arrays of the nodes being trimmed to the number of nodes
+	 *
+	 * @param filename the path of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String filename) throws IOException{
+		IndexFile.Writer out = new IndexFile.Writer("kd", this.pointsS);
+		out.putInt("leafSize", this.leafSize);
+		out.putInt("root", this.root);
+		out.putFloats("vectors", this.vectors);
+		out.putInts("rows", this.rows);
+		out.putInts("splitDim", Arrays.copyOf(this.splitDim, this.numNodes));
+		out.putFloats("splitValue", Arrays.copyOf(this.splitValue, this.numNodes));
+		out.putInts("left", Arrays.copyOf(this.left, this.numNodes));
+		out.putInts("right", Arrays.copyOf(this.right, this.numNodes));
+		out.putInts("start", Arrays.copyOf(this.start, this.numNodes));
+		out.putInts("end", Arrays.copyOf(this.end, this.numNodes));
+		out.write(filename);
+	}
+
+	// adds a node and returns its index, growing the arrays of the nodes when they are full
+	private int newNode(){
+		if(this.numNodes == this.splitDim.length){
+			int capacity = 2 * this.numNodes + 1;
+			this.splitDim = Arrays.copyOf(this.splitDim, capacity);
+			this.splitValue = Arrays.copyOf(this.splitValue, capacity);
+			this.left = Arrays.copyOf(this.left, capacity);
+			this.right = Arrays.copyOf(this.right, capacity);
+			this.start = Arrays.copyOf(this.start, capacity);
+			this.end = Arrays.copyOf(this.end, capacity);
+		}
+		return this.numNodes++;
+	}
+
+	/**
+	 * Builds the subtree of the points perm[lo, hi)
+	 *
+	 * @return the index of the root of the subtree
+	 */
+	private int build(float[] original, int[] perm, int lo, int hi){
+		int node = this.newNode();
+		this.start[node] = lo;
+		this.end[node] = hi;
+		int d = this.dimension;
+
+		if(hi - lo <= this.leafSize){
+			this.splitDim[node] = -1;
+			return node;
+		}
+
+		// the coordinate with the largest spread over the points of the node
+		int bestDim = 0;
+		float bestSpread = -1;
+		for(int j = 0; j < d; j++){
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for(int i = lo; i < hi; i++){
+				float value = original[perm[i] * d + j];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			if(max - min > bestSpread){
+				bestSpread = max - min;
+				bestDim = j;
+			}
+		}
+
+		// all the points are the same, nothing can separate them
+		if(bestSpread <= 0){
+			this.splitDim[node] = -1;
+			return node;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(original, perm, lo, hi, mid, bestDim, d);
+
+		this.splitDim[node] = bestDim;
+		this.splitValue[node] = original[perm[mid] * d + bestDim];
+		int leftChild = this.build(original, perm, lo, mid);
+		int rightChild = this.build(original, perm, mid, hi);
+		this.left[node] = leftChild;
+		this.right[node] = rightChild;
+		return node;
+	}
+
+	/**
+	 * Reorders perm[lo, hi) so that the point at index nth has the coordinate dim it would have if they were sorted by it, the
+	 * points before it having smaller or equal coordinates and the ones after larger or equal coordinates (quickselect)
+	 */
+	private static void select(float[] original, int[] perm, int lo, int hi, int nth, int dim, int d){
+		hi--;
+		while(lo < hi){
+			float pivot = original[perm[(lo + hi) >>> 1] * d + dim];
+			int i = lo;
+			int j = hi;
+			while(i <= j){
+				while(original[perm[i] * d + dim] < pivot){
+					i++;
+				}
+				while(original[perm[j] * d + dim] > pivot){
+					j--;
+				}
+				if(i <= j){
+					int temp = perm[i];
+					perm[i] = perm[j];
+					perm[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if(nth <= j){
+				hi = j;
+			}
+			else if(nth >= i){
+				lo = i;
+			}
+			else{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query in the tree
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to the query, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		PriorityQueue4 pq = new PriorityQueue4(k);
+		if(this.pointsS.size() > 0){
+			pq.countWork(this.search(this.root, query.getData(), query.getOffset(), pq));
+		}
+
+		int size = pq.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		pq.drainSorted(ids, keys);
+
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(size);
+		for(int i = 0; i < size; i++){
+			LabelledPoint point = this.pointsS.getPoint(this.rows[ids[i]]);
+			point.setKey(Math.sqrt(keys[i]));
+			finalKNN.add(point);
+		}
+		return finalKNN;
+	}
+
+	// visits the subtree of the node, the keys of the queue being squared distances and its ids indexes in the leaf order, and
+	// returns the number of distances evaluated
+	private long search(int node, float[] query, int queryOff, PriorityQueue4 pq){
+		int d = this.dimension;
+
+		if(this.splitDim[node] < 0){
+			for(int i = this.start[node]; i < this.end[node]; i++){
+				double bound = pq.bound();
+				double squared = LabelledPoint.squaredDistance(this.vectors, i * d, query, queryOff, d, bound);
+				if(squared < bound){
+					pq.offer(i, squared);
+				}
+			}
+			return this.end[node] - this.start[node];
+		}
+
+		double diff = query[queryOff + this.splitDim[node]] - this.splitValue[node];
+		int near = diff <= 0 ? this.left[node] : this.right[node];
+		int far = diff <= 0 ? this.right[node] : this.left[node];
+
+		long evaluated = this.search(near, query, queryOff, pq);
+		// every point on the other side is at least as far from the query as the splitting plane
+		if(diff * diff < pq.bound()){
+			evaluated += this.search(far, query, queryOff, pq);
+		}
+		return evaluated;
+	}
+
+}
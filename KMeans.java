@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+This class represents the k-means clustering shared by the quantizers of the indexes: the coarse quantizer of IVFIndex and the
+sub-quantizers of ProductQuantizationIndex. The vectors are given one after the other in a float array, the centroids are
+returned in the same layout.
+
+*/
+public class KMeans{
+
+	/**
+	 * Copies the vectors of size points of the set taken at random, without repetition (partial Fisher-Yates shuffle)
+	 *
+	 * @param ps the set of points
+	 * @param size the number of points sampled, at most the size of the set
+	 * @param random the random generator choosing the points
+	 * @return the vectors of the sample, one after the other, in a random order
+	 */
+	public static float[] sample(PointSet ps, int size, Random random){
+		int n = ps.size();
+		int d = ps.getDimension();
+		int[] perm = new int[n];
+		for(int i = 0; i < n; i++){
+			perm[i] = i;
+		}
+
+		float[] sampled = new float[size * d];
+		for(int i = 0; i < size; i++){
+			int j = i + random.nextInt(n - i);
+			int temp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = temp;
+			ps.copyRows(perm[i], 1, sampled, i * d);
+		}
+		return sampled;
+	}
+
+	/**
+	 * Trains k centroids by Lloyd's iterations, starting from the first k vectors (so the vectors should be in a random order).
+	 * A centroid left without any vector is moved to a random vector
+	 *
+	 * @param vectors the vectors, one after the other
+	 * @param count the number of vectors, at least k
+	 * @param dimension the length of the vectors
+	 * @param k the number of centroids
+	 * @param iterations the number of iterations
+	 * @param random the random generator moving the empty centroids
+	 * @return the centroids, one after the other
+	 */
+	public static float[] train(float[] vectors, int count, int dimension, int k, int iterations, Random random){
+		int d = dimension;
+		float[] centroids = new float[k * d];
+		System.arraycopy(vectors, 0, centroids, 0, k * d);
+
+		int[] assignment = new int[count];
+		double[] sums = new double[k * d];
+		int[] counts = new int[k];
+
+		for(int it = 0; it < iterations; it++){
+			for(int i = 0; i < count; i++){
+				assignment[i] = nearest(centroids, k, d, vectors, i * d);
+			}
+
+			Arrays.fill(sums, 0.0);
+			Arrays.fill(counts, 0);
+			for(int i = 0; i < count; i++){
+				int c = assignment[i];
+				counts[c]++;
+				for(int j = 0; j < d; j++){
+					sums[c * d + j] += vectors[i * d + j];
+				}
+			}
+
+			for(int c = 0; c < k; c++){
+				if(counts[c] == 0){
+					System.arraycopy(vectors, random.nextInt(count) * d, centroids, c * d, d);
+					continue;
+				}
+				for(int j = 0; j < d; j++){
+					centroids[c * d + j] = (float) (sums[c * d + j] / counts[c]);
+				}
+			}
+		}
+		return centroids;
+	}
+
+	/**
+	 * Gives the index of the centroid nearest to a vector
+	 *
+	 * @param centroids the centroids, one after the other
+	 * @param k the number of centroids
+	 * @param dimension the length of the vectors
+	 * @param data the array holding the vector
+	 * @param off the index of the vector in data
+	 * @return the index of the nearest centroid
+	 */
+	public static int nearest(float[] centroids, int k, int dimension, float[] data, int off){
+		int best = 0;
+		double bestSquared = Double.POSITIVE_INFINITY;
+		for(int c = 0; c < k; c++){
+			double squared = LabelledPoint.squaredDistance(centroids, c * dimension, data, off, dimension, bestSquared);
+			if(squared < bestSquared){
+				bestSquared = squared;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+}
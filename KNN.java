@@ -1,6 +1,10 @@
 import java.io.IOException;
 import java.util.ArrayList;
-import java.io.FileWriter;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /* 
 Implementation by: Michael Massaad
@@ -31,6 +35,119 @@ public class KNN{
 
 	}
 
+	/**
+	 * Gives the searcher that finds the KNN of a query in the set of points with the findKNN method of the given PQ version,
+	 * a new priority queue being created for each query
+	 * 
+	 * @param version the version of PQ to use
+	 * @param points the set of points from which we find the nearest neighbors
+	 * @return the searcher, or null if the version is not valid
+	 */
+	public static KNNSearcher searcher(int version, PointSet points){
+		if(version == 1){
+			return (query, k) -> new PriorityQueue1(k, points, query).findKNN();
+		}
+		else if(version == 2){
+			return (query, k) -> new PriorityQueue2(k, points, query).findKNN();
+		}
+		else if(version == 3){
+			return (query, k) -> new PriorityQueue3(k, points, query).findKNN();
+		}
+		else if(version == 4){
+			return (query, k) -> new PriorityQueue4(k, points, query).findKNN();
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the index described by the spec over the set of points. The spec is the name of the index, optionally followed by
+	 * its parameters: "name:param=value,param=value"
+	 *   kd   KD-tree (leaf: the maximum number of points in a leaf)
+	 *   vp   vantage-point tree (leaf: the maximum number of points in a leaf, seed: the seed picking the vantage points)
+	 *   ivf  inverted file (nlist: the number of lists, nprobe: the number of lists scanned per query, sample: the number of
+	 *        points the centroids are trained on, iter: the number of k-means iterations, seed: the seed of the sample)
+	 *   hnsw HNSW graph (M: the number of links per node, efc: efConstruction, ef: efSearch, threads: the number of threads
+	 *        building the graph, seed: the seed drawing the levels of the nodes)
+	 *   pq   product quantization (m: the number of sub-vectors, ksub: the number of centroids per sub-vector, sample: the number
+	 *        of points the centroids are trained on, iter: the number of k-means iterations, rerank: the number of points
+	 *        compared again with their exact vectors, seed: the seed of the sample)
+	 *   sq   scalar quantization (type: int8 or fp16, rerank: the number of candidates compared again with their exact vectors,
+	 *        at least k)
+	 * 
+	 * @param spec the description of the index
+	 * @param points the set of points indexed
+	 * @return the index, or null if the name is not valid
+	 */
+	public static KNNSearcher buildIndex(String spec, PointSet points){
+		int colon = spec.indexOf(':');
+		String name = colon < 0 ? spec : spec.substring(0, colon);
+		HashMap<String, String> params = new HashMap<String, String>();
+
+		if(colon >= 0){
+			for(String param : spec.substring(colon + 1).split(",")){
+				int equals = param.indexOf('=');
+				if(equals > 0){
+					params.put(param.substring(0, equals).trim(), param.substring(equals + 1).trim());
+				}
+			}
+		}
+
+		if(name.equals("kd")){
+			return new KDTree(points, intParam(params, "leaf", KDTree.DEFAULT_LEAF_SIZE));
+		}
+		else if(name.equals("vp")){
+			return new VPTree(points, intParam(params, "leaf", VPTree.DEFAULT_LEAF_SIZE), intParam(params, "seed", 42));
+		}
+		else if(name.equals("ivf")){
+			int nlist = intParam(params, "nlist", IVFIndex.defaultNlist(points.size()));
+			return new IVFIndex(points, nlist, intParam(params, "nprobe", IVFIndex.DEFAULT_NPROBE),
+				intParam(params, "sample", IVFIndex.DEFAULT_SAMPLE_PER_LIST * nlist), intParam(params, "iter", IVFIndex.DEFAULT_ITERATIONS), intParam(params, "seed", 42));
+		}
+		else if(name.equals("hnsw")){
+			return new HNSWIndex(points, intParam(params, "M", HNSWIndex.DEFAULT_M), intParam(params, "efc", HNSWIndex.DEFAULT_EF_CONSTRUCTION),
+				intParam(params, "ef", HNSWIndex.DEFAULT_EF_SEARCH), intParam(params, "threads", Runtime.getRuntime().availableProcessors()), intParam(params, "seed", 42));
+		}
+		else if(name.equals("pq")){
+			int ksub = intParam(params, "ksub", ProductQuantizationIndex.DEFAULT_KSUB);
+			return new ProductQuantizationIndex(points, intParam(params, "m", ProductQuantizationIndex.defaultM(points.getDimension())), ksub,
+				intParam(params, "sample", ProductQuantizationIndex.DEFAULT_SAMPLE_PER_CENTROID * ksub), intParam(params, "iter", ProductQuantizationIndex.DEFAULT_ITERATIONS),
+				intParam(params, "rerank", 0), intParam(params, "seed", 42));
+		}
+		else if(name.equals("sq")){
+			String type = params.getOrDefault("type", "int8");
+			if(!type.equals("int8") && !type.equals("fp16")){
+				return null;
+			}
+			return new ScalarQuantizedIndex(points, type.equals("fp16"), intParam(params, "rerank", 0));
+		}
+		return null;
+	}
+
+	// gets an integer parameter of an index spec, or its default value when it is not given
+	private static int intParam(HashMap<String, String> params, String name, int defaultValue){
+		String value = params.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * Writes the labels of the KNN of a query in the desired format, "i: label1, label2, ..."
+	 * 
+	 * @param i the index of the query
+	 * @param kNearestN the nearest neighbors of the query, starting with the closest one
+	 * @return the line to write for the query
+	 */
+	public static String formatKNN(int i, ArrayList<LabelledPoint> kNearestN){
+		StringBuilder str = new StringBuilder(i + ": "); // implementing the stringbuilder to write the KNN of the current query point in the desired format
+
+		for(int j = 0; j < kNearestN.size()-1; j++){
+			str.append(kNearestN.get(j).getLabel() + ", ");
+
+		}
+		str.append(kNearestN.get(kNearestN.size()-1).getLabel());
+
+		return str.toString();
+	}
+
 	/**
 	 * Execution of the find KNN algorithm for a certain set of query points, and writes in a seperate file the KNN for each query
 	 * 
@@ -41,131 +158,373 @@ public class KNN{
 		// when executing the class, the user inputs the version, k value, the set of points and the set of query points
 		// example: java KNN 1 10 sift_base.fvecs siftsmall_query.fvecs 
 		// so we can access all the information through the args parameter and initialize the variables needed
+		// the options can follow the four arguments:
+		//   --mmap          memory-map the fvecs files instead of reading them on the heap
+		//   --stream rows   read the set of points in chunks of rows points instead of loading it
+		//   --threads n     run the queries concurrently on a pool of n threads
+		//   --intra n       split the set of points into n ranges scanned in parallel for each query (PriorityQueue4 per range)
+		//   --blocked       compare tiles of queries to cache-sized blocks of points, using precomputed norms (PriorityQueue4 per query)
+		//   --index spec    build an index over the set of points and answer the queries with it (see buildIndex for the specs)
+		//   --save-index f  save the index built with --index to the index file f
+		//   --load-index f  open the index saved in the index file f instead of building one
+		//   --cache n       answer the queries already asked (same vector and k) from a cache of at most n results
+		//   --metrics fmt   record the latency of each query and the work of the priority queues, printed as json or prom (Prometheus)
+		//   --output fmt    write the results as text (the default) or as binary ivecs, on a thread of its own
+		//   --distances     also write the distance of each result (after the label in text, in a fvecs file next to the ivecs)
+		//   --quiet         do not print the results to the console
+		//   --gt file       compare the results to the ground truth ivecs file, printing the recall@k, the QPS and the latencies
+		// the set of points and the queries can also be bvecs files (coordinates stored as bytes), which are then always loaded on
+		// the heap, --mmap being ignored with a warning and --stream refused
 
 		int version = Integer.parseInt(args[0]); // what PQ version we want to execute
 
 		int k = Integer.parseInt(args[1]); // how many nearest neighbors do we want
 
-		PointSet points = new PointSet(PointSet.read_ANN_SIFT(args[2])); // the points from which we find the nearest neighbors
+		boolean mmap = false; // if the fvecs files are memory-mapped
 
-		PointSet queries = new PointSet(PointSet.read_ANN_SIFT(args[3])); // the query points for which we find the nearest neighbors
+		int streamRows = 0; // the chunk size when the set of points is streamed, 0 if it is loaded
 
-		int num_queries = 100; // this is the amount of query vectors that we are working with for this assignment
+		int threads = 1; // the number of threads running the queries
 
-		ArrayList<LabelledPoint> kNearestN; // ArrayList that contains the nearest neighbors for a certain query
+		int intra = 1; // the number of threads scanning the set of points for a single query
 
-		double timeElapsed = 0.0; // computing the total time it takes to execute the KNN algorithm for the queries
+		boolean blocked = false; // if the queries are answered by tiles with the BlockedKNN engine
 
-		try{
-		// creating a new file writer that will write all of the KNN for each query
-		FileWriter f = new FileWriter("knn" + "_" + version  + "_" + k + "_" + num_queries + "_" + " 1000000.txt");
+		String groundTruthFile = null; // the ground truth the results are evaluated against, if any
 
-		// accessing each of the query points one by one and executing the findKNN method for the appropriate PQ version
-		if(version == 1){
-			ArrayList<LabelledPoint> queryArray = queries.getPointsList();
+		String indexSpec = null; // the index answering the queries, if any
 
-			for(int i = 0; i < 100; i++){
+		String saveIndexFile = null; // the file the index is saved to, if any
 
-			PriorityQueue1 pq1 = new PriorityQueue1(k, points, queryArray.get(i));
+		String loadIndexFile = null; // the file the index is opened from, if any
 
-			double start = System.currentTimeMillis();
-			kNearestN = pq1.findKNN();
-			double end = System.currentTimeMillis();
+		int cacheEntries = 0; // the maximum number of results in the cache of the queries, 0 for no cache
+
+		String metricsFormat = null; // the format the metrics are printed in, null if they are not recorded
+
+		boolean binaryOutput = false; // if the results are written as ivecs instead of text
+
+		boolean writeDistances = false; // if the distances of the results are written with their labels
+
+		boolean quiet = false; // if the results are not printed to the console
+
+		for(int a = 4; a < args.length; a++){
+			if(args[a].equals("--mmap")){
+				mmap = true;
+			}
+			else if(args[a].equals("--stream") && a + 1 < args.length){
+				streamRows = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--threads") && a + 1 < args.length){
+				threads = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--intra") && a + 1 < args.length){
+				intra = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--blocked")){
+				blocked = true;
+			}
+			else if(args[a].equals("--gt") && a + 1 < args.length){
+				groundTruthFile = args[++a];
+			}
+			else if(args[a].equals("--index") && a + 1 < args.length){
+				indexSpec = args[++a];
+			}
+			else if(args[a].equals("--save-index") && a + 1 < args.length){
+				saveIndexFile = args[++a];
+			}
+			else if(args[a].equals("--load-index") && a + 1 < args.length){
+				loadIndexFile = args[++a];
+			}
+			else if(args[a].equals("--cache") && a + 1 < args.length){
+				cacheEntries = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--metrics") && a + 1 < args.length){
+				metricsFormat = args[++a];
+				if(!metricsFormat.equals("json") && !metricsFormat.equals("prom")){
+					System.out.println("Invalid metrics format " + metricsFormat);
+					return;
+				}
+				Metrics.enable();
+			}
+			else if(args[a].equals("--output") && a + 1 < args.length){
+				String format = args[++a];
+				if(!format.equals("text") && !format.equals("ivecs")){
+					System.out.println("Invalid output format " + format);
+					return;
+				}
+				binaryOutput = format.equals("ivecs");
+			}
+			else if(args[a].equals("--distances")){
+				writeDistances = true;
+			}
+			else if(args[a].equals("--quiet")){
+				quiet = true;
+			}
+			else{
+				System.out.println("Unknown option " + args[a]);
+				return;
+			}
+		}
 
-			timeElapsed += end - start; // taking note of how much time it took to implement the findKNN method for the PriorityQueue1 implementation
+		if(version < 1 || version > 4){
+			System.out.println("Invalid version input");
+			return;
+		}
 
+		// the ranges scanned in parallel always use PriorityQueue4 and answer the queries one by one
+		if(intra > 1 && version != 4){
+			System.out.println("The option --intra only runs PQ4, use version 4");
+			return;
+		}
+		if(intra > 1 && threads > 1){
+			System.out.println("The options --intra and --threads cannot be combined");
+			return;
+		}
+		if(intra > 1 && (indexSpec != null || loadIndexFile != null || streamRows > 0 || blocked)){
+			System.out.println("The option --intra cannot be combined with --index, --load-index, --stream or --blocked");
+			return;
+		}
 
-			StringBuilder str = new StringBuilder(i + ": "); // implementing the stringbuilder to write the KNN of the current query point in the desired format
+		// the blocked engine answers the whole batch with PriorityQueue4 on the loaded set of points
+		if(blocked && version != 4){
+			System.out.println("The option --blocked only runs PQ4, use version 4");
+			return;
+		}
+		if(blocked && (threads > 1 || indexSpec != null || loadIndexFile != null || streamRows > 0 || cacheEntries > 0)){
+			System.out.println("The option --blocked cannot be combined with --threads, --index, --load-index, --stream or --cache");
+			return;
+		}
 
-			for(int j = 0; j < kNearestN.size()-1; j++){
+		// the streamed set of points is never loaded, so there is nothing to index, and it is read once for all the queries
+		if(streamRows > 0 && (threads > 1 || indexSpec != null || loadIndexFile != null || cacheEntries > 0)){
+			System.out.println("The option --stream cannot be combined with --threads, --index, --load-index or --cache");
+			return;
+		}
+		if(indexSpec != null && loadIndexFile != null){
+			System.out.println("The options --index and --load-index cannot be combined");
+			return;
+		}
+		if(saveIndexFile != null && indexSpec == null){
+			System.out.println("The option --save-index needs an index built with --index");
+			return;
+		}
 
-				str.append(kNearestN.get(j).getLabel() + ", ");
+		if(streamRows > 0 && args[2].endsWith(".bvecs")){
+			System.out.println("The option --stream only reads fvecs files, " + args[2] + " is a bvecs file");
+			return;
+		}
 
+		PointSet points = null; // the points from which we find the nearest neighbors, not loaded when they are streamed
 
+		if(streamRows == 0 && args[2].endsWith(".bvecs")){
+			if(mmap){
+				System.out.println("Warning: --mmap is ignored for the bvecs file " + args[2] + ", it is loaded on the heap");
 			}
+			points = PointSet.load_ANN_bvecs(args[2]);
+		}
+		else if(streamRows == 0){
+			points = mmap ? PointSet.map_ANN_SIFT(args[2]) : PointSet.load_ANN_SIFT(args[2]);
+		}
 
-			str.append(kNearestN.get(kNearestN.size()-1).getLabel());
+		// the query points for which we find the nearest neighbors, a bvecs file being loaded on the heap like the set of points
+		PointSet queries = args[3].endsWith(".bvecs") ? PointSet.load_ANN_bvecs(args[3]) : mmap ? PointSet.map_ANN_SIFT(args[3]) : PointSet.load_ANN_SIFT(args[3]);
 
+		int num_queries = 100; // this is the amount of query vectors that we are working with for this assignment
 
-			f.write(str.toString());
-			f.write("\n");
-			System.out.println(str.toString());
-			}	
+		ArrayList<LabelledPoint> kNearestN; // ArrayList that contains the nearest neighbors for a certain query
 
-			// printing the time it took to execute the findKNN for all 100 query points using PriorityQueue1
-			System.out.println("Total running time for PQ" + version + " to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
-			f.close();
+		double timeElapsed = 0.0; // computing the total time it takes to execute the KNN algorithm for the queries
+
+		ArrayList<ArrayList<LabelledPoint>> allResults = new ArrayList<ArrayList<LabelledPoint>>(num_queries); // the KNN of every query, kept for the evaluation
+
+		long[] latencies = null; // the time each query took in nanoseconds, when the queries are answered one by one
+
+		// the index is built before any query is run, its build time is not part of the running time
+		KNNSearcher index = null;
+
+		if(indexSpec != null && points != null){
+			double buildStart = System.currentTimeMillis();
+			index = buildIndex(indexSpec, points);
+			double buildEnd = System.currentTimeMillis();
+
+			if(index == null){
+				System.out.println("Invalid index " + indexSpec);
+				return;
+			}
+			System.out.println("Built index " + indexSpec + " in " + (buildEnd - buildStart) + " milliseconds");
+
+			if(saveIndexFile != null){
+				if(!(index instanceof PersistentIndex)){
+					System.out.println("The index " + indexSpec + " cannot be saved");
+					return;
+				}
+				try{
+					((PersistentIndex) index).save(saveIndexFile);
+				}
+				catch(IOException exception){
+					System.out.println("There is an error, here is the stack trace");
+					exception.printStackTrace();
+					return;
+				}
+				System.out.println("Saved index " + indexSpec + " to " + saveIndexFile);
+			}
+		}
+		else if(loadIndexFile != null && points != null){
+			double loadStart = System.currentTimeMillis();
+			try{
+				index = IndexFile.load(loadIndexFile, points);
+			}
+			catch(IOException exception){
+				System.out.println("There is an error, here is the stack trace");
+				exception.printStackTrace();
+				return;
+			}
+			double loadEnd = System.currentTimeMillis();
+
+			indexSpec = loadIndexFile;
+			System.out.println("Loaded index " + loadIndexFile + " in " + (loadEnd - loadStart) + " milliseconds");
 		}
 
-		else if (version == 2){
-			ArrayList<LabelledPoint> queryArray = queries.getPointsList();
+		// what answers each query when the set of points is loaded
+		KNNSearcher uncached = points == null ? null : index != null ? index : intra > 1 ? new ParallelKNN(points, intra) : searcher(version, points);
+		KNNSearcher searcher = uncached != null && cacheEntries > 0 ? new CachingSearcher(uncached, cacheEntries, CachingSearcher.DEFAULT_MAX_BYTES) : uncached;
+
+		try{
+		// creating the writer that will write all of the KNN for each query, on its own thread so the queries never wait for the
+		// file or the console. the lines are printed before the total running time since the writer is closed first
+		ResultWriter f = new ResultWriter("knn" + "_" + version  + "_" + k + "_" + num_queries + "_" + " 1000000" + (binaryOutput ? ".ivecs" : ".txt"),
+			num_queries, binaryOutput, writeDistances, !quiet);
+
+		// streaming the set of points once for all the queries, each query keeping its nearest neighbors in a PQ of the appropriate version
+		if(streamRows > 0){
+			StreamingKNN stream = new StreamingKNN(k, version, queries, num_queries, streamRows);
+
+			double start = System.currentTimeMillis();
+			ArrayList<ArrayList<LabelledPoint>> allKNN = stream.findKNN(args[2]);
+			double end = System.currentTimeMillis();
 
-			for(int i = 0; i < 100; i++){
+			timeElapsed += end - start;
+			allResults.addAll(allKNN);
 
-			PriorityQueue2 pq2 = new PriorityQueue2(k, points, queryArray.get(i));
+			for(int i = 0; i < allKNN.size(); i++){
+			f.write(i, allKNN.get(i));
+			}
+			f.close();
+
+			// printing the time it took to stream the set of points once for all 100 query points
+			System.out.println("Total running time for streamed PQ" + version + " to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
+		}
+
+		// answering the whole batch by tiles of queries, the set of points being read once per tile
+		else if(blocked){
+			BlockedKNN engine = new BlockedKNN(points);
+			ArrayList<LabelledPoint> queryArray = new ArrayList<LabelledPoint>(queries.getPointsList().subList(0, num_queries));
 
 			double start = System.currentTimeMillis();
-			kNearestN = pq2.findKNN();
+			ArrayList<ArrayList<LabelledPoint>> allKNN = engine.findKNN(queryArray, k);
 			double end = System.currentTimeMillis();
 
-			timeElapsed += end - start; // taking note of how much time it took to implement the findKNN method for the PriorityQueue2 implementation
+			timeElapsed += end - start;
+			allResults.addAll(allKNN);
 
+			for(int i = 0; i < allKNN.size(); i++){
+			f.write(i, allKNN.get(i));
+			}
+			f.close();
 
-			StringBuilder str = new StringBuilder(i + ": "); // implementing the stringbuilder to write the KNN of the current query point in the desired format
+			// printing the time it took to answer the 100 query points by tiles (without the computation of the norms)
+			System.out.println("Total running time for blocked PQ4 to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
+		}
+
+		// submitting all the queries to a pool of threads, they share the set of points which is only read. each thread gives its
+		// result to the writer, which puts them back in the order of the queries, so the file is the same as the one written by
+		// the sequential execution
+		else if(threads > 1){
+			ArrayList<LabelledPoint> queryArray = queries.getPointsList();
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			ArrayList<Future<ArrayList<LabelledPoint>>> results = new ArrayList<Future<ArrayList<LabelledPoint>>>(num_queries);
 
-			for(int j = 0; j < kNearestN.size()-1; j++){
-				str.append(kNearestN.get(j).getLabel() + ", ");
+			long[] queryTimes = new long[num_queries];
+			latencies = queryTimes;
 
+			double start = System.currentTimeMillis();
+			for(int i = 0; i < num_queries; i++){
+				LabelledPoint query = queryArray.get(i);
+				int queryIndex = i;
+				results.add(pool.submit(() -> {
+					long queryStart = System.nanoTime();
+					ArrayList<LabelledPoint> result = searcher.findKNN(query, k);
+					queryTimes[queryIndex] = System.nanoTime() - queryStart;
+					Metrics.recordLatency(queryTimes[queryIndex]);
+					f.write(queryIndex, result);
+					return result;
+				}));
 			}
-			str.append(kNearestN.get(kNearestN.size()-1).getLabel());
-			
-			f.write(str.toString());
-			f.write("\n");
-			System.out.println(str.toString());
-			}	
 
-			// printing the time it took to execute the findKNN for all 100 query points using PriorityQueue2
-			System.out.println("Total running time for PQ" + version + " to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
+			try{
+				for(int i = 0; i < num_queries; i++){
+				allResults.add(results.get(i).get());
+				}
+			}
+			catch(InterruptedException | ExecutionException exception){
+				System.out.println("There is an error, here is the stack trace");
+				exception.printStackTrace();
+			}
+			finally{
+				pool.shutdownNow();
+			}
+			double end = System.currentTimeMillis();
+
+			timeElapsed += end - start;
 			f.close();
+
+			// printing the wall time it took to execute the findKNN for all 100 query points on all the threads
+			System.out.println("Total running time for PQ" + version + " on " + threads + " threads to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
 		}
 
-		else if( version == 3){
+		// accessing each of the query points one by one and executing the findKNN method for the appropriate PQ version
+		else{
 			ArrayList<LabelledPoint> queryArray = queries.getPointsList();
+			latencies = new long[num_queries];
 
-			for(int i = 0; i < 100; i++){
-
-			PriorityQueue3 pq3 = new PriorityQueue3(k, points, queryArray.get(i));
+			for(int i = 0; i < num_queries; i++){
 
 			double start = System.currentTimeMillis();
-			kNearestN = pq3.findKNN();
+			long queryStart = System.nanoTime();
+			kNearestN = searcher.findKNN(queryArray.get(i), k);
+			latencies[i] = System.nanoTime() - queryStart;
+			Metrics.recordLatency(latencies[i]);
 			double end = System.currentTimeMillis();
 
-			timeElapsed += end - start; // taking note of how much time it took to implement the findKNN method for the PriorityQueue3 implementation
+			timeElapsed += end - start; // taking note of how much time it took to implement the findKNN method for the PriorityQueue implementation
+			allResults.add(kNearestN);
 
-			StringBuilder str = new StringBuilder(i + ": ");// implementing the stringbuilder to write the KNN of the current query point in the desired format
+			f.write(i, kNearestN);
+			}	
+			f.close();
 
-			for(int j = 0; j < kNearestN.size()-1; j++){
-				str.append(kNearestN.get(j).getLabel() + ", ");
+			// printing the time it took to execute the findKNN for all 100 query points using the PriorityQueue version
+			System.out.println("Total running time for " + (index != null ? "index " + indexSpec : intra > 1 ? "PQ4 on " + intra + " ranges" : "PQ" + version) + " to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
+		}
 
-			}
-			str.append(kNearestN.get(kNearestN.size()-1).getLabel());
-			
-			f.write(str.toString());
-			f.write("\n");
-			System.out.println(str.toString());
-			}	
+		// comparing the results to the ground truth
+		if(groundTruthFile != null){
+			Evaluation.report(allResults, PointSet.read_ANN_ivecs(groundTruthFile), k, timeElapsed, latencies);
+		}
 
-			// printing the time it took to execute the findKNN for all 100 query points using PriorityQueue3
-			System.out.println("Total running time for PQ" + version + " to find " + k +" nearest neighbours of 100 queries = " + timeElapsed + " milliseconds");
-			f.close();
+		// the distance evaluations the metric tree saved compared to a linear scan
+		if(index instanceof VPTree){
+			System.out.println(((VPTree) index).statistics());
 		}
 
-		else{
-			System.out.println("Invalid version input"); 
+		if(searcher instanceof CachingSearcher){
+			System.out.println(((CachingSearcher) searcher).statistics());
+		}
 
+		if(metricsFormat != null){
+			System.out.println(metricsFormat.equals("json") ? Metrics.toJSON() : Metrics.toPrometheus());
 		}
-	
-		
 		}
 		catch(IOException exception){
 			System.out.println("There is an error, here is the stack trace");
@@ -174,4 +533,4 @@ public class KNN{
 
 }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,13 @@
+import java.util.ArrayList;
+
+/* 
+This interface represents a way of finding the k nearest neighbors of a query point in a set of points, so that KNN can run
+the queries the same way whatever priority queue (or later index) answers them. An implementation must be safe to call from
+several threads at once.
+*/
+
+public interface KNNSearcher {
+
+    // Returns the k nearest neighbors of the query, starting with the closest one.
+    ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k);
+}
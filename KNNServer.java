@@ -0,0 +1,445 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+This class represents a resident k nearest neighbors server: the set of points is loaded (and the index built or opened) once,
+then queries are answered over HTTP on the local machine until the process is stopped, so a query only costs its search and
+the JIT stays warm. The requests are handled on a fixed pool of threads (Java 17 has no virtual threads), each request
+running its queries one after the other with the same KNNSearcher as KNN.
+
+    java KNNServer base.fvecs [--port 8080] [--mmap] [--version 4] [--index spec | --load-index file] [--threads n] [--cache n] [--live] [--metrics]
+
+The endpoints are:
+- POST /knn?k=10: the body holds one query per line, its coordinates separated by spaces or commas, and the response has one
+  line per query in the format of the result files of KNN, "i: label1, label2, ...", starting with the closest point. With
+  &distances=true each label is followed by its distance, "label:distance". A k larger than the number of points gives all
+  of them
+- GET /health: the number of points and their dimension, and the counters of the cache of the results when there is one
+- GET /metrics: with --metrics, the latencies of the queries (p50, p99, p999) and the work of the priority queues in the text
+  format of Prometheus, or as JSON with ?format=json
+With --live the set of points is a LivePointSet, which the queries see changing:
+- POST /insert: the body holds one point per line, like the queries, and the response has the label given to each point, one
+  per line
+- POST /delete: the body holds the labels of the points to delete, separated by spaces, commas or lines, and the response has
+  the number of points deleted
+The cache of the results is cleared after each change.
+
+*/
+public class KNNServer{
+
+	/**
+	 * represents the set of points the queries are answered on
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * what answers each query
+	 */
+	private KNNSearcher searcher;
+
+	/**
+	 * the set of points the changes go to, null when the set does not change
+	 */
+	private LivePointSet live;
+
+	/**
+	 * the HTTP server and the threads handling its requests
+	 */
+	private HttpServer server;
+	private ExecutorService pool;
+
+	// the largest body of a request, in bytes
+	static final int MAX_BODY_BYTES = 64 << 20;
+
+	// class constructor that initializes all the instance variables and binds the server to the port of the local machine
+	public KNNServer(PointSet ps, KNNSearcher searcherInput, LivePointSet liveInput, int port, int threads) throws IOException{
+		this.pointsS = ps;
+		this.searcher = searcherInput;
+		this.live = liveInput;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.setExecutor(this.pool);
+		this.server.createContext("/knn", this::handleKNN);
+		this.server.createContext("/health", this::handleHealth);
+		this.server.createContext("/metrics", this::handleMetrics);
+		if(liveInput != null){
+			this.server.createContext("/insert", this::handleInsert);
+			this.server.createContext("/delete", this::handleDelete);
+		}
+
+	}
+
+	// starts answering the requests, on the threads of the pool
+	public void start(){
+		this.server.start();
+	}
+
+	// stops the server, waiting at most the given number of seconds for the requests being handled
+	public void stop(int delaySeconds){
+		this.server.stop(delaySeconds);
+		this.pool.shutdown();
+	}
+
+	// gets the port the server listens on
+	public int getPort(){
+		return this.server.getAddress().getPort();
+	}
+
+	// sends the text as the response, with the status code
+	private static void respond(HttpExchange exchange, int status, String text) throws IOException{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(bytes);
+		}
+	}
+
+	// gets a parameter of the query string of the URI, or its default value when it is not given
+	private static String parameter(URI uri, String name, String defaultValue){
+		String query = uri.getRawQuery();
+		if(query == null){
+			return defaultValue;
+		}
+		for(String pair : query.split("&")){
+			int equals = pair.indexOf('=');
+			if(equals > 0 && pair.substring(0, equals).equals(name)){
+				return pair.substring(equals + 1);
+			}
+		}
+		return defaultValue;
+	}
+
+	// reads the body of the request, or returns null if it is larger than MAX_BODY_BYTES
+	private static byte[] readBody(HttpExchange exchange) throws IOException{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		try(InputStream in = exchange.getRequestBody()){
+			for(int read = in.read(buffer); read >= 0; read = in.read(buffer)){
+				if(body.size() + read > MAX_BODY_BYTES){
+					return null;
+				}
+				body.write(buffer, 0, read);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Parses the queries of the body, one per line
+	 *
+	 * @return the queries, or null if a line does not have one number per coordinate
+	 */
+	private ArrayList<LabelledPoint> parseQueries(String body){
+		int d = this.pointsS.getDimension();
+		ArrayList<LabelledPoint> queries = new ArrayList<LabelledPoint>();
+		for(String line : body.split("\n")){
+			line = line.trim();
+			if(line.isEmpty()){
+				continue;
+			}
+			String[] values = line.split("[\\s,]+");
+			if(values.length != d){
+				return null;
+			}
+			float[] vector = new float[d];
+			try{
+				for(int j = 0; j < d; j++){
+					vector[j] = Float.parseFloat(values[j]);
+				}
+			}
+			catch(NumberFormatException exception){
+				return null;
+			}
+			queries.add(new LabelledPoint(vector, 0, d, queries.size()));
+		}
+		return queries;
+	}
+
+	// answers POST /knn
+	private void handleKNN(HttpExchange exchange) throws IOException{
+		try{
+			if(!exchange.getRequestMethod().equals("POST")){
+				respond(exchange, 405, "Use POST with one query per line\n");
+				return;
+			}
+
+			int k;
+			try{
+				k = Integer.parseInt(parameter(exchange.getRequestURI(), "k", "10"));
+			}
+			catch(NumberFormatException exception){
+				k = 0;
+			}
+			if(k <= 0){
+				respond(exchange, 400, "k must be a positive integer\n");
+				return;
+			}
+			// a k larger than the set gives all its points, the queues are not allocated for more
+			k = Math.min(k, this.live != null ? this.live.size() : this.pointsS.size());
+			boolean distances = parameter(exchange.getRequestURI(), "distances", "false").equals("true");
+
+			byte[] body = readBody(exchange);
+			if(body == null){
+				respond(exchange, 413, "The request is larger than " + MAX_BODY_BYTES + " bytes\n");
+				return;
+			}
+			ArrayList<LabelledPoint> queries = this.parseQueries(new String(body, StandardCharsets.UTF_8));
+			if(queries == null){
+				respond(exchange, 400, "Every query must have " + this.pointsS.getDimension() + " coordinates\n");
+				return;
+			}
+
+			StringBuilder response = new StringBuilder();
+			for(int i = 0; i < queries.size(); i++){
+				long queryStart = System.nanoTime();
+				ArrayList<LabelledPoint> kNearestN = this.searcher.findKNN(queries.get(i), k);
+				Metrics.recordLatency(System.nanoTime() - queryStart);
+				if(kNearestN.isEmpty()){
+					response.append(i).append(":\n");
+				}
+				else if(distances){
+					response.append(i).append(": ");
+					for(int j = 0; j < kNearestN.size(); j++){
+						response.append(j == 0 ? "" : ", ").append(kNearestN.get(j).getLabel()).append(':').append(kNearestN.get(j).getKey());
+					}
+					response.append('\n');
+				}
+				else{
+					response.append(KNN.formatKNN(i, kNearestN)).append('\n');
+				}
+			}
+			respond(exchange, 200, response.toString());
+		}
+		finally{
+			exchange.close();
+		}
+	}
+
+	// answers POST /insert
+	private void handleInsert(HttpExchange exchange) throws IOException{
+		try{
+			if(!exchange.getRequestMethod().equals("POST")){
+				respond(exchange, 405, "Use POST with one point per line\n");
+				return;
+			}
+			byte[] body = readBody(exchange);
+			if(body == null){
+				respond(exchange, 413, "The request is larger than " + MAX_BODY_BYTES + " bytes\n");
+				return;
+			}
+			ArrayList<LabelledPoint> points = this.parseQueries(new String(body, StandardCharsets.UTF_8));
+			if(points == null){
+				respond(exchange, 400, "Every point must have " + this.pointsS.getDimension() + " coordinates\n");
+				return;
+			}
+
+			StringBuilder response = new StringBuilder();
+			for(LabelledPoint point : points){
+				response.append(this.live.append(point.getData())).append('\n');
+			}
+			this.clearCache();
+			respond(exchange, 200, response.toString());
+		}
+		finally{
+			exchange.close();
+		}
+	}
+
+	// answers POST /delete
+	private void handleDelete(HttpExchange exchange) throws IOException{
+		try{
+			if(!exchange.getRequestMethod().equals("POST")){
+				respond(exchange, 405, "Use POST with the labels of the points\n");
+				return;
+			}
+			byte[] body = readBody(exchange);
+			if(body == null){
+				respond(exchange, 413, "The request is larger than " + MAX_BODY_BYTES + " bytes\n");
+				return;
+			}
+
+			ArrayList<Integer> labels = new ArrayList<Integer>();
+			try{
+				for(String value : new String(body, StandardCharsets.UTF_8).trim().split("[\\s,]+")){
+					if(!value.isEmpty()){
+						labels.add(Integer.parseInt(value));
+					}
+				}
+			}
+			catch(NumberFormatException exception){
+				respond(exchange, 400, "The labels must be integers\n");
+				return;
+			}
+
+			int deleted = 0;
+			for(int label : labels){
+				if(this.live.delete(label)){
+					deleted++;
+				}
+			}
+			this.clearCache();
+			respond(exchange, 200, deleted + "\n");
+		}
+		finally{
+			exchange.close();
+		}
+	}
+
+	// removes the results of the cache, which the changes of the set of points made stale
+	private void clearCache(){
+		if(this.searcher instanceof CachingSearcher){
+			((CachingSearcher) this.searcher).clear();
+		}
+	}
+
+	// answers GET /metrics
+	private void handleMetrics(HttpExchange exchange) throws IOException{
+		try{
+			if(!Metrics.isEnabled()){
+				respond(exchange, 404, "Start the server with --metrics to record the metrics\n");
+				return;
+			}
+			if(parameter(exchange.getRequestURI(), "format", "prom").equals("json")){
+				respond(exchange, 200, Metrics.toJSON() + "\n");
+			}
+			else{
+				respond(exchange, 200, Metrics.toPrometheus());
+			}
+		}
+		finally{
+			exchange.close();
+		}
+	}
+
+	// answers GET /health
+	private void handleHealth(HttpExchange exchange) throws IOException{
+		try{
+			int size = this.live != null ? this.live.size() : this.pointsS.size();
+			String health = "ok " + size + " points of dimension " + this.pointsS.getDimension() + "\n";
+			if(this.live != null){
+				health += this.live.statistics() + "\n";
+			}
+			if(this.searcher instanceof CachingSearcher){
+				health += ((CachingSearcher) this.searcher).statistics() + "\n";
+			}
+			respond(exchange, 200, health);
+		}
+		finally{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Loads the set of points, builds or opens the index if one is asked, then serves the queries until the process is stopped
+	 *
+	 * @param args the base file followed by the options described at the top of the class
+	 */
+	public static void main(String[] args){
+		if(args.length < 1){
+			System.out.println("Usage: java KNNServer base.fvecs [--port 8080] [--mmap] [--version 4] [--index spec | --load-index file] [--threads n] [--cache n] [--live] [--metrics]");
+			return;
+		}
+
+		int port = 8080;
+		boolean mmap = false;
+		int version = 4;
+		String indexSpec = null;
+		String loadIndexFile = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int cacheEntries = 0;
+		boolean liveSet = false;
+
+		for(int a = 1; a < args.length; a++){
+			if(args[a].equals("--port") && a + 1 < args.length){
+				port = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--mmap")){
+				mmap = true;
+			}
+			else if(args[a].equals("--version") && a + 1 < args.length){
+				version = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--index") && a + 1 < args.length){
+				indexSpec = args[++a];
+			}
+			else if(args[a].equals("--load-index") && a + 1 < args.length){
+				loadIndexFile = args[++a];
+			}
+			else if(args[a].equals("--threads") && a + 1 < args.length){
+				threads = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--cache") && a + 1 < args.length){
+				cacheEntries = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("--live")){
+				liveSet = true;
+			}
+			else if(args[a].equals("--metrics")){
+				Metrics.enable();
+			}
+			else{
+				System.out.println("Unknown option " + args[a]);
+				return;
+			}
+		}
+
+		if(version < 1 || version > 4){
+			System.out.println("Invalid version input");
+			return;
+		}
+
+		try{
+			long startTime = System.currentTimeMillis();
+			PointSet points = args[0].endsWith(".bvecs") ? PointSet.load_ANN_bvecs(args[0]) : mmap ? PointSet.map_ANN_SIFT(args[0]) : PointSet.load_ANN_SIFT(args[0]);
+
+			KNNSearcher searcher;
+			if(loadIndexFile != null){
+				searcher = IndexFile.load(loadIndexFile, points);
+			}
+			else if(indexSpec != null){
+				searcher = KNN.buildIndex(indexSpec, points);
+				if(searcher == null){
+					System.out.println("Invalid index " + indexSpec);
+					return;
+				}
+			}
+			else{
+				searcher = KNN.searcher(version, points);
+			}
+			// the compacted sets are searched the same way, an index loaded from a file being built again with its defaults
+			LivePointSet live = null;
+			if(liveSet){
+				String spec = loadIndexFile != null ? IndexFile.open(loadIndexFile, points).getName() : indexSpec;
+				int searcherVersion = version;
+				live = new LivePointSet(points, searcher, ps -> spec != null ? KNN.buildIndex(spec, ps) : KNN.searcher(searcherVersion, ps),
+					LivePointSet.DEFAULT_COMPACT_FRACTION);
+				searcher = live;
+			}
+			if(cacheEntries > 0){
+				searcher = new CachingSearcher(searcher, cacheEntries, CachingSearcher.DEFAULT_MAX_BYTES);
+			}
+
+			KNNServer knnServer = new KNNServer(points, searcher, live, port, threads);
+			knnServer.start();
+			System.out.println("Serving " + points.size() + " points on http://localhost:" + knnServer.getPort() + "/knn, ready in "
+				+ (System.currentTimeMillis() - startTime) + " milliseconds");
+		}
+		catch(IOException exception){
+			System.out.println("There is an error, here is the stack trace");
+			exception.printStackTrace();
+		}
+	}
+
+}
@@ -8,17 +8,35 @@ It includes also a key that can be used to order LabelledPoint instances
 /* 
 Implementation by: Michael Massaad
 
-This class was provided in the instructions of the assignment and from which all of my PriorityQueue implementations have to use
+This class was provided in the instructions of the assignment and from which all of my PriorityQueue implementations have to use.
+The vector is not stored in the point itself: a LabelledPoint is a view over one row of a flat float array
+(usually the one owned by a PointSet), so that a whole data set does not need one boxed Float per coordinate.
 */
 
 
 class LabelledPoint {
-    private Float[] vector;   // the vector
+    private float[] data;     // the array that holds the vector
+    private int offset;       // the index of the first coordinate of the vector in data
+    private int length;       // the dimension of the vector
 	private int label;        // the id (should be unique)
 	private double key;       // the key used for ordering
 
     public LabelledPoint(Float[] vector, int label) {
-        this.vector = vector;
+        this.data = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            this.data[i] = vector[i];
+        }
+        this.offset = 0;
+        this.length = vector.length;
+		this.label= label;
+		this.key= 0.0;
+    }
+
+    // constructs a view over the row of a flat array starting at the given offset
+    public LabelledPoint(float[] data, int offset, int length, int label) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
 		this.label= label;
 		this.key= 0.0;
     }
@@ -29,11 +47,25 @@ class LabelledPoint {
 	    return label;
 	}
 	
-	// gets the vector (an array of floats)
+	// gets a copy of the vector (an array of Floats)
 	public Float[] getVector(){
 	
+	    Float[] vector = new Float[length];
+	    for (int i = 0; i < length; i++) {
+	        vector[i] = data[offset + i];
+	    }
 	    return vector;
 	}
+
+	// gets the flat array holding the vector, starting at getOffset()
+	public float[] getData(){
+	    return data;
+	}
+
+	// gets the index of the first coordinate of the vector in getData()
+	public int getOffset(){
+	    return offset;
+	}
 	
 	// gets the key value
 	public double getKey() {
@@ -47,28 +79,59 @@ class LabelledPoint {
 
     // gets the length (dimension) of the vector	
 	public int getLength() {
-	    return vector.length;	
+	    return length;	
 	}
 
     // computes the Euclidean distance between two vectors
     public double distanceTo(LabelledPoint other) {
-        double sum = 0;
-        for (int i = 0; i < vector.length; i++) {
-            float diff = vector[i] - other.vector[i];
-            sum += diff * diff;
+        return distance(data, offset, other.data, other.offset, length);
+    }
+
+    // computes the Euclidean distance between the vectors of the given length starting at a[aOff] and b[bOff]
+    public static double distance(float[] a, int aOff, float[] b, int bOff, int length) {
+        return Math.sqrt(squaredDistance(a, aOff, b, bOff, length));
+    }
+
+    // computes the squared Euclidean distance between the vectors of the given length starting at a[aOff] and b[bOff]
+    public static double squaredDistance(float[] a, int aOff, float[] b, int bOff, int length) {
+        return KERNEL.squaredDistance(a, aOff, b, bOff, length, Double.POSITIVE_INFINITY);
+    }
+
+    // computes the squared Euclidean distance between the vectors of the given length starting at a[aOff] and b[bOff], but
+    // gives up as soon as the partial sum is over the bound, in which case the partial sum (already over the bound) is returned
+    public static double squaredDistance(float[] a, int aOff, float[] b, int bOff, int length, double bound) {
+        return KERNEL.squaredDistance(a, aOff, b, bOff, length, bound);
+    }
+
+    // computes the inner product of the vectors of the given length starting at a[aOff] and b[bOff]
+    public static double innerProduct(float[] a, int aOff, float[] b, int bOff, int length) {
+        return KERNEL.innerProduct(a, aOff, b, bOff, length);
+    }
+
+    // the loops computing the distances: the vector API ones (simd/VectorDistanceKernel.java) when they were compiled and
+    // the jdk.incubator.vector module is present, unless -Dknn.kernel=scalar is given, and the scalar ones otherwise
+    static final DistanceKernel KERNEL = selectKernel();
+
+    private static DistanceKernel selectKernel() {
+        if (!"scalar".equals(System.getProperty("knn.kernel"))) {
+            try {
+                return (DistanceKernel) Class.forName("VectorDistanceKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // the class or the module is missing, or the CPU has no vectors: we use the scalar loops
+            }
         }
-        return Math.sqrt(sum);
+        return new ScalarDistanceKernel();
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("(");
         for (int i=0; i<4; i++) {
-            sb.append(vector[i]).append(", ");
+            sb.append(data[offset + i]).append(", ");
         }
         sb.append("..., ");
-        for (int i=vector.length-2; i<vector.length; i++) {
-            sb.append(vector[i]).append(", ");
+        for (int i=length-2; i<length; i++) {
+            sb.append(data[offset + i]).append(", ");
         }
         sb.setLength(sb.length() - 2); 
         sb.append(")");
@@ -0,0 +1,137 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+This class represents a histogram of latencies in nanoseconds, in the way of an HDR histogram: the values under 128 have one
+bucket each, and every power of two above is split into 64 buckets of the same width, so a value is counted with an error of
+at most 1/64 (1.6%) whatever its magnitude, in a fixed array of 3712 counters. Recording a value is a few shifts and an
+atomic increment, so the threads answering queries can record into the same histogram.
+
+*/
+public class LatencyHistogram{
+
+	// the number of bits of the values that have a bucket of their own, and the number of buckets per power of two above them
+	static final int SUB_BUCKET_BITS = 7;
+	static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+
+	// enough buckets for any positive long
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS;
+
+	/**
+	 * the number of values recorded in each bucket
+	 */
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * the number of values recorded, their sum and the largest one
+	 */
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private volatile long max;
+
+	// class constructor that initializes all the instance variables
+	public LatencyHistogram(){
+
+	}
+
+	// gets the bucket of a value: the value itself under 128, then 64 buckets per power of two
+	static int bucket(long value){
+		if(value < (1 << SUB_BUCKET_BITS)){
+			return (int) Math.max(0, value);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	// gets the smallest value of a bucket
+	static long lowestValue(int bucket){
+		if(bucket < (1 << SUB_BUCKET_BITS)){
+			return bucket;
+		}
+		int shift = bucket / HALF_SUB_BUCKETS - 1;
+		return (long) (bucket - shift * HALF_SUB_BUCKETS) << shift;
+	}
+
+	// gets the value reported for a bucket, the middle of its range
+	static long medianValue(int bucket){
+		int shift = bucket < (1 << SUB_BUCKET_BITS) ? 0 : bucket / HALF_SUB_BUCKETS - 1;
+		return lowestValue(bucket) + ((1L << shift) >> 1);
+	}
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos the latency in nanoseconds, negative values being counted as 0
+	 */
+	public void record(long nanos){
+		this.counts.incrementAndGet(bucket(nanos));
+		this.count.increment();
+		this.sum.add(Math.max(0, nanos));
+		if(nanos > this.max){
+			synchronized(this){
+				this.max = Math.max(this.max, nanos);
+			}
+		}
+	}
+
+	/**
+	 * Gives the latency under which the given fraction of the values recorded are
+	 *
+	 * @param quantile the fraction, 0.5 for the median, 0.99 for the 99th percentile
+	 * @return the latency in nanoseconds, within 1.6% of the exact one, or 0 if nothing was recorded
+	 */
+	public long percentile(double quantile){
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++){
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0){
+			return 0;
+		}
+
+		// the rank of the value in the values recorded, counting from 1
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += snapshot[i];
+			if(seen >= rank){
+				return Math.min(medianValue(i), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	// gets the number of values recorded
+	public long getCount(){
+		return this.count.sum();
+	}
+
+	// gets the sum of the values recorded, in nanoseconds
+	public long getSum(){
+		return this.sum.sum();
+	}
+
+	// gets the largest value recorded, in nanoseconds
+	public long getMax(){
+		return this.max;
+	}
+
+	// gets the mean of the values recorded, in nanoseconds
+	public double getMean(){
+		long n = this.count.sum();
+		return n == 0 ? 0.0 : (double) this.sum.sum() / n;
+	}
+
+	// forgets all the values recorded
+	public synchronized void reset(){
+		for(int i = 0; i < BUCKETS; i++){
+			this.counts.set(i, 0);
+		}
+		this.count.reset();
+		this.sum.reset();
+		this.max = 0;
+	}
+
+}
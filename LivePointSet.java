@@ -0,0 +1,343 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/*
+This class represents a set of points that changes while it is searched: points can be appended and deleted at any time,
+concurrently with the queries, without reloading the set or rebuilding its index for every change.
+
+The PointSet and the searcher built on it (a PriorityQueue version or an index) are never changed, since every searcher keeps
+the arrays of its set. The changes are kept beside them instead:
+- the appended points go to a delta, scanned by every query with a PriorityQueue4, their labels following the largest label
+  of the set
+- the deleted points are tombstones, labels left out of the results, each one numbered in the order of the deletions; the
+  base searcher is asked for k nearest neighbors, and for twice as many each time fewer than k of them are live, up to k more
+  than the number of tombstones
+The base set, its searcher, the delta and the number of tombstones make a State, which a query reads once, so it sees the
+changes made before it started and none made after: like the rows of the delta, the tombstones numbered past the count of its
+State are ignored. Compaction copies the live points into a new PointSet, builds its searcher on it with the factory, and
+replaces the State; it runs on a background thread when the delta passes a fraction of the set or the tombstones a smaller
+one, the queries going on with the old State meanwhile.
+
+*/
+public class LivePointSet implements KNNSearcher{
+
+	// the points a query sees: the base set and its searcher, the rows of the delta and the tombstones
+	private static class State{
+		final PointSet base;
+		final KNNSearcher searcher;
+		final float[] deltaVectors;   // the rows [0, deltaCount) are never written again
+		final int[] deltaLabels;
+		final int deltaCount;
+		final ConcurrentHashMap<Integer, Integer> deleted;   // the labels deleted and their numbers, shared until the next compaction
+		final int deletedCount;                              // the tombstones numbered [0, deletedCount) are the ones of this state
+
+		State(PointSet base, KNNSearcher searcher, float[] deltaVectors, int[] deltaLabels, int deltaCount,
+			ConcurrentHashMap<Integer, Integer> deleted, int deletedCount){
+			this.base = base;
+			this.searcher = searcher;
+			this.deltaVectors = deltaVectors;
+			this.deltaLabels = deltaLabels;
+			this.deltaCount = deltaCount;
+			this.deleted = deleted;
+			this.deletedCount = deletedCount;
+		}
+
+		// checks if the point of the label was deleted in this state
+		boolean isDeleted(int label){
+			Integer number = this.deleted.get(label);
+			return number != null && number < this.deletedCount;
+		}
+	}
+
+	/**
+	 * the points the queries see, replaced as a whole by the changes
+	 */
+	private volatile State state;
+
+	/**
+	 * builds the searcher of a compacted set of points
+	 */
+	private Function<PointSet, KNNSearcher> factory;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * the label of the next point appended
+	 */
+	private int nextLabel;
+
+	/**
+	 * the labels of the points deleted that a compaction removed, so they are not deleted again, read and written holding the lock
+	 */
+	private BitSet removed = new BitSet();
+
+	/**
+	 * the fraction of the size of the base set the delta and the tombstones can reach before a compaction is started
+	 */
+	private double compactFraction;
+
+	/**
+	 * the thread running the compactions, and whether one is running
+	 */
+	private ExecutorService compactor;
+	private AtomicBoolean compacting = new AtomicBoolean(false);
+
+	// the fraction of the set that starts a compaction when it is not given
+	static final double DEFAULT_COMPACT_FRACTION = 0.1;
+
+	// the fraction of the set the tombstones can reach before a compaction, smaller since the queries ask the base searcher for
+	// more neighbors as there are more tombstones
+	static final double TOMBSTONE_FRACTION = 0.01;
+
+	// the number of changes that can always be made before a compaction, however small the set
+	static final int MIN_CHANGES_BEFORE_COMPACTION = 1024;
+
+	// class constructor that starts from the given set of points and its searcher, the factory building the searchers of the compacted sets
+	public LivePointSet(PointSet ps, KNNSearcher searcherInput, Function<PointSet, KNNSearcher> factoryInput, double compactFractionInput){
+		this.factory = factoryInput;
+		this.dimension = ps.getDimension();
+		this.compactFraction = compactFractionInput;
+
+		int maxLabel = -1;
+		for(int i = 0; i < ps.size(); i++){
+			maxLabel = Math.max(maxLabel, ps.getLabel(i));
+		}
+		this.nextLabel = maxLabel + 1;
+
+		this.state = new State(ps, searcherInput, new float[0], new int[0], 0, new ConcurrentHashMap<Integer, Integer>(), 0);
+		this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "knn-compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	}
+
+	// starts from the given set of points, searched with PriorityQueue4
+	public LivePointSet(PointSet ps){
+		this(ps, KNN.searcher(4, ps), points -> KNN.searcher(4, points), DEFAULT_COMPACT_FRACTION);
+	}
+
+	/**
+	 * Appends a point to the set, visible to the queries that start after it returns
+	 *
+	 * @param vector the coordinates of the point, copied
+	 * @return the label of the new point
+	 */
+	public int append(float[] vector){
+		if(vector.length != this.dimension){
+			throw new IllegalArgumentException("the point has " + vector.length + " coordinates instead of " + this.dimension);
+		}
+		int label;
+		synchronized(this){
+			State current = this.state;
+			int count = current.deltaCount;
+			float[] vectors = current.deltaVectors;
+			int[] labels = current.deltaLabels;
+			// the arrays grow by copy, the queries reading the old ones only read the rows they already had
+			if(count == labels.length){
+				int capacity = Math.max(16, 2 * count);
+				vectors = Arrays.copyOf(vectors, capacity * this.dimension);
+				labels = Arrays.copyOf(labels, capacity);
+			}
+			System.arraycopy(vector, 0, vectors, count * this.dimension, this.dimension);
+			label = this.nextLabel++;
+			labels[count] = label;
+			this.state = new State(current.base, current.searcher, vectors, labels, count + 1, current.deleted, current.deletedCount);
+		}
+		this.maybeCompact();
+		return label;
+	}
+
+	/**
+	 * Deletes the point of the label, the queries that start after it returns do not find it
+	 *
+	 * @param label the label of the point
+	 * @return true if the point was not already deleted
+	 */
+	public boolean delete(int label){
+		synchronized(this){
+			State current = this.state;
+			if(label < 0 || label >= this.nextLabel || this.removed.get(label) || current.deleted.containsKey(label)){
+				return false;
+			}
+			// the tombstone is numbered before the state counting it is published
+			current.deleted.put(label, current.deletedCount);
+			this.state = new State(current.base, current.searcher, current.deltaVectors, current.deltaLabels, current.deltaCount,
+				current.deleted, current.deletedCount + 1);
+		}
+		this.maybeCompact();
+		return true;
+	}
+
+	/**
+	 * Finds the k nearest live neighbors of the query among the base set and the delta
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to the query, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		State current = this.state;
+		int d = this.dimension;
+
+		// every tombstone can take the place of one of the k nearest points of the base set, so the base searcher is asked again
+		// for twice as many points while fewer than k are live, at most k more than the tombstones being always enough
+		ArrayList<LabelledPoint> live = new ArrayList<LabelledPoint>();
+		int limit = Math.min(current.base.size(), k + current.deletedCount);
+		for(int fetch = Math.min(k, limit); fetch > 0; fetch = Math.min(2 * fetch, limit)){
+			live.clear();
+			ArrayList<LabelledPoint> found = current.searcher.findKNN(query, fetch);
+			for(LabelledPoint point : found){
+				if(!current.isDeleted(point.getLabel())){
+					live.add(point);
+				}
+			}
+			if(live.size() >= k || found.size() < fetch || fetch >= limit){
+				break;
+			}
+		}
+
+		// the live points of the base searcher are already sorted and were counted by it, so only the rows of the delta go through
+		// the queue, abandoned against the k-th live point when there are k of them, and the two sorted lists are merged
+		double liveBound = k > 0 && live.size() >= k ? live.get(k - 1).getKey() : Double.POSITIVE_INFINITY;
+		ArrayList<LabelledPoint> appended = new ArrayList<LabelledPoint>();
+		PriorityQueue4 pq = new PriorityQueue4(k);
+
+		float[] queryData = query.getData();
+		int queryOff = query.getOffset();
+		for(int row = 0; row < current.deltaCount; row++){
+			double bound = Math.min(pq.bound(), liveBound);
+			double squared = LabelledPoint.squaredDistance(current.deltaVectors, row * d, queryData, queryOff, d, bound * bound);
+			double distance = Math.sqrt(squared);
+			if(distance < bound && !current.isDeleted(current.deltaLabels[row])){
+				LabelledPoint point = new LabelledPoint(current.deltaVectors, row * d, d, current.deltaLabels[row]);
+				point.setKey(distance);
+				pq.offer(appended.size(), distance);
+				appended.add(point);
+			}
+		}
+		pq.countWork(current.deltaCount);
+
+		int size = pq.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		pq.drainSorted(ids, keys);
+
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(k);
+		int i = 0;
+		int j = 0;
+		while(finalKNN.size() < k && (i < live.size() || j < size)){
+			if(j == size || (i < live.size() && live.get(i).getKey() <= keys[j])){
+				finalKNN.add(live.get(i++));
+			}
+			else{
+				finalKNN.add(appended.get(ids[j++]));
+			}
+		}
+		return finalKNN;
+	}
+
+	// starts a compaction on the background thread when the delta or the tombstones pass their fraction of the set and none is running
+	private void maybeCompact(){
+		State current = this.state;
+		boolean deltaFull = current.deltaCount > Math.max(MIN_CHANGES_BEFORE_COMPACTION, this.compactFraction * current.base.size());
+		boolean tombstonesFull = current.deletedCount > Math.max(MIN_CHANGES_BEFORE_COMPACTION, TOMBSTONE_FRACTION * current.base.size());
+		if((deltaFull || tombstonesFull) && this.compacting.compareAndSet(false, true)){
+			this.compactor.submit(() -> {
+				try{
+					this.compact();
+				}
+				finally{
+					this.compacting.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Copies the live points into a new set, builds its searcher and makes it the base of the queries. The points appended and
+	 * deleted while the searcher is built stay in the delta and the tombstones of the new state
+	 */
+	public void compact(){
+		// only one compaction at a time, the changes and the queries go on while the searcher is built
+		synchronized(this.compactor){
+			// the state read is never changed, the tombstones numbered past its count being ignored
+			State before = this.state;
+
+			int d = this.dimension;
+			PointSet base = before.base;
+			int total = base.size() + before.deltaCount;
+			float[] vectors = new float[total * d];
+			int[] labels = new int[total];
+			int live = 0;
+			for(int i = 0; i < base.size(); i++){
+				if(!before.isDeleted(base.getLabel(i))){
+					base.copyRows(i, 1, vectors, live * d);
+					labels[live++] = base.getLabel(i);
+				}
+			}
+			for(int row = 0; row < before.deltaCount; row++){
+				if(!before.isDeleted(before.deltaLabels[row])){
+					System.arraycopy(before.deltaVectors, row * d, vectors, live * d, d);
+					labels[live++] = before.deltaLabels[row];
+				}
+			}
+			PointSet compacted = new PointSet(Arrays.copyOf(vectors, live * d), d, Arrays.copyOf(labels, live));
+			KNNSearcher searcher = this.factory.apply(compacted);
+
+			synchronized(this){
+				State current = this.state;
+				// the rows appended since the copy were written after the rows it took, in the same arrays
+				int appended = current.deltaCount - before.deltaCount;
+				float[] deltaVectors = Arrays.copyOfRange(current.deltaVectors, before.deltaCount * d, current.deltaCount * d);
+				int[] deltaLabels = Arrays.copyOfRange(current.deltaLabels, before.deltaCount, current.deltaCount);
+
+				// the points deleted before the copy are not in the new set, the new tombstones are the ones deleted since, numbered
+				// again from 0 in the same order. the old map is not changed, for the queries still reading the old states
+				ConcurrentHashMap<Integer, Integer> deleted = new ConcurrentHashMap<Integer, Integer>();
+				for(Map.Entry<Integer, Integer> tombstone : current.deleted.entrySet()){
+					if(tombstone.getValue() < before.deletedCount){
+						this.removed.set(tombstone.getKey());
+					}
+					else{
+						deleted.put(tombstone.getKey(), tombstone.getValue() - before.deletedCount);
+					}
+				}
+				this.state = new State(compacted, searcher, deltaVectors, deltaLabels, appended, deleted, current.deletedCount - before.deletedCount);
+			}
+		}
+	}
+
+	// gets the number of live points, the base set and the delta without the tombstones
+	public int size(){
+		State current = this.state;
+		return current.base.size() + current.deltaCount - current.deletedCount;
+	}
+
+	/**
+	 * Gives the sizes of the base set, the delta and the tombstones
+	 *
+	 * @return the description of the set
+	 */
+	public String statistics(){
+		State current = this.state;
+		return "Live set: " + current.base.size() + " points in the base set, " + current.deltaCount + " appended, " + current.deletedCount + " deleted";
+	}
+
+	// gets the length of the vectors
+	public int getDimension(){
+		return this.dimension;
+	}
+
+}
@@ -0,0 +1,159 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+This class represents the metrics of the searches: the latency of each query in a LatencyHistogram, and for each priority queue
+version the number of distances evaluated (the points compared to the query, the partial distances abandoned included), the
+number of points inserted in the queue and the number rejected. They can be exported as JSON or in the text format of Prometheus.
+
+The metrics are off until enable is called. The queues count their inserts in a field, and every engine (the findKNN of the
+priority queues, the parallel, blocked and streaming searches, the indexes and the live set) counts the distances it really
+evaluated and adds them at the end of the query only when the metrics are on, so when they are off a query only pays one read
+of a volatile field.
+
+*/
+public class Metrics{
+
+	/**
+	 * whether the metrics are recorded
+	 */
+	private static volatile boolean enabled = false;
+
+	/**
+	 * the latency of the queries
+	 */
+	private static final LatencyHistogram latencies = new LatencyHistogram();
+
+	/**
+	 * the counters of each priority queue version, indexed by the version minus 1
+	 */
+	private static final LongAdder[] distanceEvaluations = adders(4);
+	private static final LongAdder[] inserts = adders(4);
+	private static final LongAdder[] rejects = adders(4);
+
+	// the quantiles exported, and their names
+	static final double[] QUANTILES = {0.5, 0.99, 0.999};
+	static final String[] QUANTILE_NAMES = {"p50", "p99", "p999"};
+
+	private Metrics(){
+
+	}
+
+	// creates n counters at 0
+	private static LongAdder[] adders(int n){
+		LongAdder[] array = new LongAdder[n];
+		for(int i = 0; i < n; i++){
+			array[i] = new LongAdder();
+		}
+		return array;
+	}
+
+	// starts recording the metrics
+	public static void enable(){
+		enabled = true;
+	}
+
+	// checks if the metrics are recorded
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Records the latency of a query, if the metrics are on
+	 *
+	 * @param nanos the time the query took in nanoseconds
+	 */
+	public static void recordLatency(long nanos){
+		if(enabled){
+			latencies.record(nanos);
+		}
+	}
+
+	/**
+	 * Adds the work of a query to the counters of its priority queue, called once per query when the metrics are on
+	 *
+	 * @param version the version of the priority queue, 1 to 4
+	 * @param evaluations the number of points compared to the query
+	 * @param inserted the number of points inserted in the queue, the others being rejected
+	 */
+	public static void countQueue(int version, long evaluations, long inserted){
+		distanceEvaluations[version - 1].add(evaluations);
+		inserts[version - 1].add(inserted);
+		rejects[version - 1].add(evaluations - inserted);
+	}
+
+	// gets the histogram of the latencies of the queries
+	public static LatencyHistogram getLatencies(){
+		return latencies;
+	}
+
+	// forgets all the values recorded
+	public static void reset(){
+		latencies.reset();
+		for(int i = 0; i < 4; i++){
+			distanceEvaluations[i].reset();
+			inserts[i].reset();
+			rejects[i].reset();
+		}
+	}
+
+	/**
+	 * Exports the metrics as a JSON object, the latencies in nanoseconds, only the priority queues that were used being listed
+	 *
+	 * @return the JSON text
+	 */
+	public static String toJSON(){
+		StringBuilder json = new StringBuilder("{\"query_latency_ns\": {");
+		json.append("\"count\": ").append(latencies.getCount());
+		json.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", latencies.getMean()));
+		for(int i = 0; i < QUANTILES.length; i++){
+			json.append(", \"").append(QUANTILE_NAMES[i]).append("\": ").append(latencies.percentile(QUANTILES[i]));
+		}
+		json.append(", \"max\": ").append(latencies.getMax()).append("}, \"queues\": {");
+
+		boolean first = true;
+		for(int i = 0; i < 4; i++){
+			if(distanceEvaluations[i].sum() == 0){
+				continue;
+			}
+			json.append(first ? "" : ", ").append("\"PQ").append(i + 1).append("\": {");
+			json.append("\"distance_evaluations\": ").append(distanceEvaluations[i].sum());
+			json.append(", \"inserts\": ").append(inserts[i].sum());
+			json.append(", \"rejects\": ").append(rejects[i].sum()).append('}');
+			first = false;
+		}
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * Exports the metrics in the text format of Prometheus: the latencies as a summary in seconds, and the counters of the
+	 * priority queues with their version as a label
+	 *
+	 * @return the Prometheus text
+	 */
+	public static String toPrometheus(){
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP knn_query_latency_seconds The time taken by each query.\n");
+		text.append("# TYPE knn_query_latency_seconds summary\n");
+		for(int i = 0; i < QUANTILES.length; i++){
+			text.append("knn_query_latency_seconds{quantile=\"").append(QUANTILES[i]).append("\"} ").append(latencies.percentile(QUANTILES[i]) / 1e9).append('\n');
+		}
+		text.append("knn_query_latency_seconds_sum ").append(latencies.getSum() / 1e9).append('\n');
+		text.append("knn_query_latency_seconds_count ").append(latencies.getCount()).append('\n');
+
+		counter(text, "knn_distance_evaluations_total", "The points compared to the queries.", distanceEvaluations);
+		counter(text, "knn_heap_inserts_total", "The points inserted in the priority queues.", inserts);
+		counter(text, "knn_heap_rejects_total", "The points compared but not inserted in the priority queues.", rejects);
+		return text.toString();
+	}
+
+	// writes a counter with one line per priority queue version
+	private static void counter(StringBuilder text, String name, String help, LongAdder[] values){
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" counter\n");
+		for(int i = 0; i < values.length; i++){
+			text.append(name).append("{queue=\"PQ").append(i + 1).append("\"} ").append(values[i].sum()).append('\n');
+		}
+	}
+
+}
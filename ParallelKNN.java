@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+This class represents the implementation of finding the k nearest neighbors of a single query on several threads. The set of
+points is split into one contiguous range of rows per thread, each range is scanned into its own bounded priority queue
+(PriorityQueue4), and the partial results, already sorted, are merged into the final k nearest neighbors.
+
+*/
+public class ParallelKNN implements KNNSearcher{
+
+	/**
+	 * represents the set of points that we are to find the distance from a query point
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the number of ranges the set of points is split into
+	 */
+	private int numRanges;
+
+	/**
+	 * the threads scanning the ranges
+	 */
+	private ExecutorService pool;
+
+	// the k nearest points of one range, both arrays starting with the closest point
+	private static class Partial{
+		int[] ids;      // the rows of the points
+		double[] keys;  // their distances from the query
+	}
+
+	// class constructor that initializes all the instance variables, the pool has one thread per range
+	public ParallelKNN(PointSet ps, int threads){
+		this.pointsS = ps;
+		this.numRanges = threads;
+		this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "knn-range");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	}
+
+	/**
+	 * Scans the rows [from, to) of the set of points into a new bounded priority queue
+	 *
+	 * @return the k nearest points of the range
+	 */
+	private Partial scanRange(LabelledPoint query, int k, int from, int to){
+		PriorityQueue4 pq = new PriorityQueue4(k);
+		float[] queryData = query.getData();
+		int queryOff = query.getOffset();
+		int d = this.pointsS.getDimension();
+
+		this.pointsS.scan(from, to, (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				// the squared distance is abandoned part of the way through the vector once it is over the square of the bound
+				double limit = pq.bound();
+				double squared = LabelledPoint.squaredDistance(data, off + r*d, queryData, queryOff, d, limit * limit);
+				if(squared <= limit * limit){
+					pq.offer(first + r, Math.sqrt(squared));
+				}
+			}
+		});
+		pq.countWork(to - from);
+
+		Partial partial = new Partial();
+		partial.ids = new int[pq.size()];
+		partial.keys = new double[pq.size()];
+		pq.drainSorted(partial.ids, partial.keys);
+		return partial;
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query by scanning every range on its own thread, then merging the sorted partial
+	 * results: at each step, the closest head among the ranges is the next nearest neighbor.
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to the query, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		int n = this.pointsS.size();
+		ArrayList<Future<Partial>> partial = new ArrayList<Future<Partial>>(this.numRanges);
+
+		for(int t = 0; t < this.numRanges; t++){
+			int from = (int) ((long) n * t / this.numRanges);
+			int to = (int) ((long) n * (t + 1) / this.numRanges);
+			partial.add(this.pool.submit(() -> this.scanRange(query, k, from, to)));
+		}
+
+		int[][] ids = new int[this.numRanges][];
+		double[][] keys = new double[this.numRanges][];
+		try{
+			for(int t = 0; t < this.numRanges; t++){
+				Partial result = partial.get(t).get();
+				ids[t] = result.ids;
+				keys[t] = result.keys;
+			}
+		}
+		catch(InterruptedException | ExecutionException exception){
+			throw new IllegalStateException("the scan of a range failed", exception);
+		}
+
+		// k-way merge, the number of ranges is the number of threads so a linear search of the closest head is enough. the
+		// ranges are in the order of the rows, so a tie between two ranges is won by the first one, like in a sequential scan
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(k);
+		int[] heads = new int[this.numRanges];
+		while(finalKNN.size() < k){
+			int best = -1;
+			for(int t = 0; t < this.numRanges; t++){
+				if(heads[t] < ids[t].length && (best == -1 || keys[t][heads[t]] < keys[best][heads[best]])){
+					best = t;
+				}
+			}
+			if(best == -1){
+				break;
+			}
+			LabelledPoint point = this.pointsS.getPoint(ids[best][heads[best]]);
+			point.setKey(keys[best][heads[best]]);
+			finalKNN.add(point);
+			heads[best]++;
+		}
+		return finalKNN;
+	}
+
+	// stops the threads of the pool
+	public void shutdown(){
+		this.pool.shutdownNow();
+	}
+
+}
@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/*
+This interface represents an index that can be saved to an index file (see IndexFile) and opened again without being rebuilt.
+Each index also has a constructor taking the set of points and the opened IndexFile.
+*/
+public interface PersistentIndex extends KNNSearcher{
+
+    /**
+     * Saves the index to a file, replacing it if it exists
+     *
+     * @param filename the path of the file
+     * @throws IOException if the file cannot be written
+     */
+    void save(String filename) throws IOException;
+}
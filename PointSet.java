@@ -9,14 +9,46 @@ It also reads fvecs files from corpus-texmex.irisa.fr
 /* 
 Implementation by: Michael Massaad
 
-This class was provided in the instructions of the assignment and from which all of my PriorityQueue implementations have to use
+This class was provided in the instructions of the assignment and from which all of my PriorityQueue implementations have to use.
+The vectors are stored row-major in a single float array (with the labels in an int array), and the LabelledPoint
+instances handed out by getPointsList() are views over the rows of that array.
+A point set can also be memory-mapped straight from an fvecs file (map_ANN_SIFT), in which case the vectors are read
+from the mapping when they are needed instead of being copied on the heap. Since a single mapping cannot go past
+2^31 bytes, a large file is mapped as several segments of whole rows, with the byte offsets in the file kept as longs,
+so that billion-scale sets stay off the heap.
 */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 class PointSet {
-    private ArrayList<LabelledPoint> pointsList = new ArrayList<>();
+    private ArrayList<LabelledPoint> pointsList; // views over the flat storage, built on first use
+
+    private float[] vectors = new float[0]; // all the vectors, one row of dimension floats after the other
+    private int[] labels = new int[0];      // the label of each row
+    private int dimension;                  // the length of every vector
+    private int count;                      // the number of points in the set
+
+    private FloatBuffer[] segments;         // the fvecs file seen as little-endian floats, null unless the set is mapped
+    private int segmentRows;                // the number of rows in each of the segments (except maybe the last one)
+
+    // the maximum size, in bytes, of one segment of a mapped file
+    static final long SEGMENT_BYTES = 1L << 30;
+
+    // the number of rows copied out of a mapping at a time by scan()
+    static final int SCAN_BLOCK = 256;
+
+    // receives consecutive rows of a point set, row first + r starting at data[off + r * dimension]
+    interface BlockVisitor {
+        void visit(int first, int rows, float[] data, int off);
+    }
 	
 	// constructs an empty point set
     public PointSet(){  
@@ -25,69 +57,267 @@ class PointSet {
 
     // constructs a point set for the given ArrayList instance
     public PointSet(ArrayList<LabelledPoint> pointsList){
-       this.pointsList = pointsList;
+       this.setPointsList(pointsList);
     }
 
-    // read from fvecs file
-    public static ArrayList<LabelledPoint> read_ANN_SIFT(String filename) {
-        ArrayList<LabelledPoint> pointSet = new ArrayList<>();
+    // constructs a point set over count = labels.length rows of the given flat array
+    public PointSet(float[] vectors, int dimension, int[] labels){
+        this.vectors = vectors;
+        this.dimension = dimension;
+        this.labels = labels;
+        this.count = labels.length;
+    }
+
+    // memory-maps an fvecs file, the vectors are read from the mapping instead of being copied on the heap
+    public static PointSet map_ANN_SIFT(String filename) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long fileLength = channel.size();
+            if (fileLength < 4) {
+                throw new IOException("Error! Invalid file format...");
+            }
+            ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            int d = header.getInt(0);
+            long vecSizeOf = 1 * 4 + d * 4L;
+            if (d <= 0 || fileLength % vecSizeOf != 0 || fileLength / vecSizeOf > Integer.MAX_VALUE) {
+                throw new IOException("Error! Invalid file format...");
+            }
+
+            PointSet set = new PointSet();
+            set.dimension = d;
+            set.count = (int) (fileLength / vecSizeOf);
+            set.segmentRows = (int) Math.max(1, SEGMENT_BYTES / vecSizeOf);
+
+            // each segment holds a whole number of rows so that a row never spans two mappings
+            int numSegments = (int) ((set.count + (long) set.segmentRows - 1) / set.segmentRows);
+            set.segments = new FloatBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long start = (long) i * set.segmentRows * vecSizeOf;
+                long length = Math.min(set.segmentRows * vecSizeOf, fileLength - start);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                set.segments[i] = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            set.vectors = null;
+            set.labels = null;
+            return set;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new PointSet();
+    }
+
+    // read from fvecs file into the flat storage of a new point set
+    public static PointSet load_ANN_SIFT(String filename) {
         try {
             FileInputStream fis = new FileInputStream(filename);
-            BufferedInputStream bis = new BufferedInputStream(fis);
+            BufferedInputStream bis = new BufferedInputStream(fis, 1 << 16);
             DataInputStream dis = new DataInputStream(bis);
 
             int d = Integer.reverseBytes(dis.readInt());
             int vecSizeOf = 1 * 4 + d * 4;
             long fileLength = new File(filename).length();
-            int bMax = (int) (fileLength / vecSizeOf);
-            int a = 1;
-            int b = bMax;
+            int n = (int) (fileLength / vecSizeOf);
 
-            if( a >= 1 && b>bMax){
-                b =bMax;
+            if (n == 0 || (long) n * d > Integer.MAX_VALUE) {
+                dis.close();
+				throw new IOException("Error! Invalid file format...");
+            }
+
+            float[] vectors = new float[n * d];
+            int[] labels = new int[n];
+            byte[] row = new byte[vecSizeOf];
+            FloatBuffer rowFloats = ByteBuffer.wrap(row).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+
+            // the dimension of the first row was already consumed, so we read each row with the dimension of the next one
+            for (int i = 0; i < n; i++) {
+                dis.readFully(row, 0, i == n - 1 ? d * 4 : vecSizeOf);
+                rowFloats.clear();
+                rowFloats.get(vectors, i * d, d);
+                labels[i] = i;
             }
 
-            if (b == 0 || b < a) {
+            dis.close();
+            return new PointSet(vectors, d, labels);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new PointSet();
+    }
+
+    // read from bvecs file (each coordinate is an unsigned byte) into the flat storage of a new point set
+    public static PointSet load_ANN_bvecs(String filename) {
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+
+            int d = Integer.reverseBytes(dis.readInt());
+            int vecSizeOf = 1 * 4 + d;
+            long fileLength = new File(filename).length();
+            int n = (int) (fileLength / vecSizeOf);
+
+            if (d <= 0 || n == 0 || (long) n * d > Integer.MAX_VALUE) {
                 dis.close();
 				throw new IOException("Error! Invalid file format...");
             }
 
-            int n = b - a + 1;
-            
-            dis.skipBytes((a - 1) * vecSizeOf);
+            float[] vectors = new float[n * d];
+            int[] labels = new int[n];
+            byte[] row = new byte[vecSizeOf];
+
+            // like for fvecs files, the dimension of the first row was already consumed
             for (int i = 0; i < n; i++) {
-                Float[] vector = new Float[d];
+                dis.readFully(row, 0, i == n - 1 ? d : vecSizeOf);
                 for (int j = 0; j < d; j++) {
-                    int floatAsInt = Integer.reverseBytes(dis.readInt());
-                    vector[j] = Float.intBitsToFloat(floatAsInt);
+                    vectors[i * d + j] = row[j] & 0xff;
                 }
-                dis.skipBytes(4);
-                pointSet.add(new LabelledPoint(vector,i));
+                labels[i] = i;
             }
 
             dis.close();
+            return new PointSet(vectors, d, labels);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return pointSet;
+        return new PointSet();
+    }
+
+    // read from ivecs file (the ground truth files of corpus-texmex), one array of ints per row
+    public static int[][] read_ANN_ivecs(String filename) {
+        ArrayList<int[]> rows = new ArrayList<>();
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+            long fileLength = new File(filename).length();
+            long read = 0;
+
+            while (read < fileLength) {
+                int d = Integer.reverseBytes(dis.readInt());
+                if (d < 0) {
+                    dis.close();
+                    throw new IOException("Error! Invalid file format...");
+                }
+                int[] row = new int[d];
+                for (int j = 0; j < d; j++) {
+                    row[j] = Integer.reverseBytes(dis.readInt());
+                }
+                rows.add(row);
+                read += 4 + 4L * d;
+            }
+
+            dis.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return rows.toArray(new int[0][]);
+    }
+
+    // read from fvecs file
+    public static ArrayList<LabelledPoint> read_ANN_SIFT(String filename) {
+        return load_ANN_SIFT(filename).getPointsList();
     }
 
     // get the ArrayList instance containing the point set
     public ArrayList<LabelledPoint> getPointsList() {
+        if (pointsList == null) {
+            ArrayList<LabelledPoint> views = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                views.add(getPoint(i));
+            }
+            pointsList = views;
+        }
         return pointsList;
     }
 
-    // set the point set
+    // set the point set, copying the vectors into the flat storage
     public void setPointsList (ArrayList<LabelledPoint> pointsList){
+        int n = pointsList.size();
+        int d = n == 0 ? 0 : pointsList.get(0).getLength();
+        float[] flat = new float[n * d];
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            LabelledPoint p = pointsList.get(i);
+            System.arraycopy(p.getData(), p.getOffset(), flat, i * d, d);
+            ids[i] = p.getLabel();
+        }
+        this.vectors = flat;
+        this.labels = ids;
+        this.dimension = d;
+        this.count = n;
+        this.segments = null;
         this.pointsList = pointsList;
     }
 
+    // gets a new view over the i-th point of the set (a copy of the row when the set is mapped)
+    public LabelledPoint getPoint(int i) {
+        if (vectors == null) {
+            float[] row = new float[dimension];
+            copyRows(i, 1, row, 0);
+            return new LabelledPoint(row, 0, dimension, getLabel(i));
+        }
+        return new LabelledPoint(vectors, i * dimension, dimension, labels[i]);
+    }
+
+    // copies the vectors of rows [first, first + rows) one after the other into dst, starting at off
+    public void copyRows(int first, int rows, float[] dst, int off) {
+        if (vectors != null) {
+            System.arraycopy(vectors, first * dimension, dst, off, rows * dimension);
+            return;
+        }
+        // every row of the file starts with its dimension, which we skip
+        int stride = dimension + 1;
+        for (int r = 0; r < rows; r++) {
+            int row = first + r;
+            FloatBuffer segment = segments[row / segmentRows];
+            segment.get((row % segmentRows) * stride + 1, dst, off + r * dimension, dimension);
+        }
+    }
+
+    // passes the rows [from, to) to the visitor, directly from the flat storage or in blocks of SCAN_BLOCK rows copied
+    // out of the mapping
+    public void scan(int from, int to, BlockVisitor visitor) {
+        if (vectors != null) {
+            if (from < to) {
+                visitor.visit(from, to - from, vectors, from * dimension);
+            }
+            return;
+        }
+        float[] block = new float[SCAN_BLOCK * dimension];
+        for (int first = from; first < to; first += SCAN_BLOCK) {
+            int rows = Math.min(SCAN_BLOCK, to - first);
+            copyRows(first, rows, block, 0);
+            visitor.visit(first, rows, block, 0);
+        }
+    }
+
+    // gets the flat array holding all the vectors, row i starting at i * getDimension(), or null when the set is mapped
+    public float[] getVectors() {
+        return vectors;
+    }
+
+    // checks if the vectors are read from a memory-mapped file
+    public boolean isMapped() {
+        return segments != null;
+    }
+
+    // gets the label of the i-th point
+    public int getLabel(int i) {
+        return labels == null ? i : labels[i];
+    }
+
+    // gets the length of the vectors
+    public int getDimension() {
+        return dimension;
+    }
+
+    // gets the number of points in the set
+    public int size() {
+        return count;
+    }
+
     public static void main(String[] args) {
 		
 		// read query points
-        PointSet queryPts = new PointSet(PointSet.read_ANN_SIFT("siftsmall_query.fvecs"));
+        PointSet queryPts = PointSet.load_ANN_SIFT("siftsmall_query.fvecs");
 		// read point set
-        PointSet pointSet = new PointSet(PointSet.read_ANN_SIFT("siftsmall_base.fvecs"));
+        PointSet pointSet = PointSet.load_ANN_SIFT("siftsmall_base.fvecs");
 		
         System.out.println("Query set: "+queryPts.getPointsList().size());
         System.out.println("Point set: "+pointSet.getPointsList().size());
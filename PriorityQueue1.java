@@ -30,6 +30,12 @@ public class PriorityQueue1 implements PriorityQueueIF<LabelledPoint>{
 	 */
 	private int size;
 
+	/**
+	 * the number of distances evaluated and of points inserted by findKNN, added to the metrics at the end of the query
+	 */
+	private long evaluations;
+	private long inserts;
+
 	/**
 	 * represents the priority queue itself, stored as an ArrayList
 	 */
@@ -158,13 +164,36 @@ public class PriorityQueue1 implements PriorityQueueIF<LabelledPoint>{
      * @return the final ArrayList that represents the PQ containing the k nearest points to the query.
      */
     public ArrayList<LabelledPoint> findKNN(){
-    	ArrayList<LabelledPoint> setPoints = this.pointsS.getPointsList();
-
-    	// offering all the points to the PQ, the only ones that stay are the k nearest to the query, so we set the key as the distance from the query
-    	// for the comparison with the points that are already contained in the ArrayList
-    	for(int i = 0; i < setPoints.size(); i++){
-    		setPoints.get(i).setKey(setPoints.get(i).distanceTo(queryV));
-    		this.offer(setPoints.get(i));
+    	final float[] query = this.queryV.getData();
+    	final int queryOff = this.queryV.getOffset();
+    	final int d = this.pointsS.getDimension();
+
+    	// offering all the points to the PQ, the only ones that stay are the k nearest to the query. the distance of each point from the query
+    	// is computed once, straight from the rows of the point set, and a LabelledPoint holding it as its key is only created for this query
+    	// when the point can enter the PQ, so the points shared by the point set are never modified
+    	this.pointsS.scan(0, this.pointsS.size(), (first, rows, data, off) -> {
+    		this.evaluations += rows;
+    		for(int r = 0; r < rows; r++){
+    			// the distance of the k-th nearest point so far bounds the squared distance, so the sum over a point that cannot enter
+    			// the PQ is abandoned part of the way through its vector
+    			double limit = this.size < this.k ? Double.POSITIVE_INFINITY : this.peek().getKey();
+    			double squared = LabelledPoint.squaredDistance(data, off + r*d, query, queryOff, d, limit * limit);
+    			if(squared > limit * limit){
+    				continue;
+    			}
+    			double dist = Math.sqrt(squared);
+    			if(dist < limit){
+    				LabelledPoint point = this.pointsS.getPoint(first + r);
+    				point.setKey(dist);
+    				if(this.offer(point)){
+    					this.inserts++;
+    				}
+    			}
+    		}
+    	});
+
+    	if(Metrics.isEnabled()){
+    		Metrics.countQueue(1, this.evaluations, this.inserts);
     	}
 
     	return distLabel;
@@ -36,6 +36,12 @@ public class PriorityQueue3 implements PriorityQueueIF<LabelledPoint>{
 	 */
 	private int size;
 
+	/**
+	 * the number of distances evaluated and of points inserted by findKNN, added to the metrics at the end of the query
+	 */
+	private long evaluations;
+	private long inserts;
+
 
 	/**
 	 * represents the priority queue itself, stored as an object of the PriorityQueue class from java.util
@@ -85,8 +91,21 @@ public class PriorityQueue3 implements PriorityQueueIF<LabelledPoint>{
 	* 
 	*/
 	public boolean offer(LabelledPoint e){
-		e.setKey(e.distanceTo(queryV));
+		// without a query point, the key of the point was already set by the caller
+		if(this.queryV != null){
+			e.setKey(e.distanceTo(queryV));
+		}
+		return this.insert(e);
+	}
 
+	/**
+	*Inserts a point whose key is already its distance from the query into the priority queue
+	*
+	* @param e the point we wish to add to the priority queue
+	* @return true if we were able to add the point into the priority queue
+	* 
+	*/
+	private boolean insert(LabelledPoint e){
 		distLabel.offer(e); // execute the offer method implemented by the java.util.PriorityQueue class
 		this.size++;
 
@@ -161,13 +180,37 @@ public class PriorityQueue3 implements PriorityQueueIF<LabelledPoint>{
      * @return the final ArrayList that represents the PQ containing the k nearest points to the query.
      */
     public ArrayList<LabelledPoint> findKNN(){
-    	ArrayList<LabelledPoint> setPoints = this.pointsS.getPointsList();
     	ArrayList<LabelledPoint> finalKNN;
 
-    	// offering all the points to the PQ, the only ones that stay are the k nearest to the query, so we set the key as the distance from the query
-    	// for the comparison with the points that are already contained in the ArrayList
-    	for(int i = 0; i < setPoints.size(); i++){
-    		this.offer(setPoints.get(i));
+    	final float[] query = this.queryV.getData();
+    	final int queryOff = this.queryV.getOffset();
+    	final int d = this.pointsS.getDimension();
+
+    	// offering all the points to the PQ, the only ones that stay are the k nearest to the query. the distance of each point from the query
+    	// is computed once, straight from the rows of the point set, and a LabelledPoint holding it as its key is only created for this query
+    	// when the point can enter the PQ, so the points shared by the point set are never modified
+    	this.pointsS.scan(0, this.pointsS.size(), (first, rows, data, off) -> {
+    		this.evaluations += rows;
+    		for(int r = 0; r < rows; r++){
+    			// the distance of the k-th nearest point so far bounds the squared distance, so the sum over a point that cannot enter
+    			// the PQ is abandoned part of the way through its vector
+    			double limit = this.size < this.k ? Double.POSITIVE_INFINITY : this.peek().getKey();
+    			double squared = LabelledPoint.squaredDistance(data, off + r*d, query, queryOff, d, limit * limit);
+    			if(squared > limit * limit){
+    				continue;
+    			}
+    			double dist = Math.sqrt(squared);
+    			if(dist < limit){
+    				LabelledPoint point = this.pointsS.getPoint(first + r);
+    				point.setKey(dist);
+    				this.insert(point);
+    				this.inserts++;
+    			}
+    		}
+    	});
+
+    	if(Metrics.isEnabled()){
+    		Metrics.countQueue(3, this.evaluations, this.inserts);
     	}
 
     	// creating and sorting the new ArrayList using the constructor with a collection as a parameter
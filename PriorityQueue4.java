@@ -0,0 +1,396 @@
+import java.util.ArrayList;
+
+/*
+This class represents the implementation of a bounded Priority Queue using a max heap stored in parallel primitive arrays: one
+for the keys (the distances from the query) and one for the ids of the points (their row in the set of points). Once the queue
+is full, a point that is not closer than the head is rejected with a single comparison, and a point that is closer replaces
+the head directly, so no object is created and no element is removed while the set of points is scanned.
+
+The queue counts the points inserted in it, and the engine filling it gives the number of distances it evaluated for it with
+countWork at the end of the query, the points evaluated but not inserted being counted as rejected by the metrics.
+
+A queue is filled either with points, through offer(LabelledPoint), or with ids and keys, through offer(int, double) and
+replaceTop, but not both: peek and poll could not give back the points of the ids, so mixing them throws an
+IllegalStateException. For the same reason, peek and poll throw it on a queue filled with ids and built without a set of
+points, whose elements are read with peekId, peekKey and drainSorted. A queue of capacity 0 accepts nothing and its findKNN gives an empty list.
+
+*/
+public class PriorityQueue4 implements PriorityQueueIF<LabelledPoint>{
+
+	/**
+	 * the number of nearest neighbors we want to find, used to initalize the priority queue capacity
+	 */
+	private int k;
+
+	/**
+	 * represents the set of points that we are to find the distance from a query point
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * a point of which we want to find the k nearest neighbors
+	 */
+	private LabelledPoint queryV;
+
+	/**
+	 * represents the size of the priority queue
+	 */
+	private int size;
+
+	/**
+	 * the number of points inserted, added to the metrics by countWork
+	 */
+	private long inserts;
+
+	/**
+	 * the number of distances evaluated by findKNN
+	 */
+	private long evaluations;
+
+	/**
+	 * the keys of the max heap, the largest one at index 0
+	 */
+	private double[] keys;
+
+	/**
+	 * the id of the point of each key, its row in the set of points when the queue is used by findKNN
+	 */
+	private int[] ids;
+
+	/**
+	 * the points inserted through offer(LabelledPoint), only created if that method is used
+	 */
+	private LabelledPoint[] points;
+
+	// class constructor that initializes all the instance variables, the queue never holding more points than the set has
+	public PriorityQueue4(int kInput, PointSet ps, LabelledPoint query){
+		this.k = ps == null ? kInput : Math.min(kInput, ps.size());
+		this.size = 0;
+		this.queryV = query;
+		this.pointsS = ps;
+		this.keys = new double[this.k];
+		this.ids = new int[this.k];
+
+	}
+
+	// constructs a queue that is only filled through offer(int, double)
+	public PriorityQueue4(int kInput){
+		this(kInput, null, null);
+	}
+
+	/**
+	*Inserts a point into the priority queue according to the capacity and the point's distance from the query point
+	*
+	* @param e the point we wish to add to the priority queue
+	* @return true if we were able to add the point into the priority queue
+	*
+	*/
+	public boolean offer(LabelledPoint e){
+		// without a query point, the key of the point was already set by the caller
+		double key = this.queryV == null ? e.getKey() : e.distanceTo(queryV);
+
+		if(this.points == null && this.size > 0){
+			throw new IllegalStateException("the queue already holds ids offered without their points");
+		}
+		if(this.size == this.k && (this.k == 0 || key >= this.keys[0])){
+			return false;
+		}
+		if(this.points == null){
+			this.points = new LabelledPoint[this.k];
+		}
+		e.setKey(key);
+		this.inserts++;
+		return this.offer(e.getLabel(), key, e);
+	}
+
+	/**
+	*Inserts an id with its key into the priority queue, if the queue is full it replaces the head when the key is smaller
+	*
+	* @param id the id of the point (its row in the set of points for findKNN)
+	* @param key the distance of the point from the query
+	* @return true if we were able to add the point into the priority queue
+	*
+	*/
+	public boolean offer(int id, double key){
+		if(this.points != null){
+			throw new IllegalStateException("the queue holds points, they must be offered as LabelledPoint");
+		}
+		if(this.size < this.k){
+			this.upheap(this.size++, id, key, null);
+			this.inserts++;
+			return true;
+		}
+		// the early reject: most points are further than the head of a full queue
+		if(this.k == 0 || key >= this.keys[0]){
+			return false;
+		}
+		this.replaceTop(id, key);
+		return true;
+	}
+
+	// inserts the point with the given id and key, the queue being either not full or the key smaller than the head
+	private boolean offer(int id, double key, LabelledPoint e){
+		if(this.size < this.k){
+			this.upheap(this.size++, id, key, e);
+		}
+		else{
+			this.downheap(0, id, key, e);
+		}
+		return true;
+	}
+
+	/**
+	*Replaces the head of a non empty queue (the point with the furthest distance) by the given id and key
+	*
+	* @param id the id of the new point
+	* @param key the distance of the new point from the query
+	*
+	*/
+	public void replaceTop(int id, double key){
+		if(this.points != null){
+			throw new IllegalStateException("the queue holds points, they must be offered as LabelledPoint");
+		}
+		this.downheap(0, id, key, null);
+		this.inserts++;
+	}
+
+	/**
+	*
+	* Returns the key a point must be under to enter the queue: the key of the head when the queue is full, infinity otherwise
+	* (minus infinity for a queue of capacity 0)
+	* @return the current bound of the queue
+	*
+	*/
+	public double bound(){
+		if(this.k == 0){
+			return Double.NEGATIVE_INFINITY;
+		}
+		return this.size < this.k ? Double.POSITIVE_INFINITY : this.keys[0];
+	}
+
+	/**
+	*
+	* Returns the key of the head of the queue (the furthest distance from the query), or infinity if the queue is empty
+	* @return the key of the head
+	*
+	*/
+	public double peekKey(){
+		return this.isEmpty() ? Double.POSITIVE_INFINITY : this.keys[0];
+	}
+
+	/**
+	*
+	* Returns the id of the head of the queue (the point with the furthest distance from the query), or -1 if the queue is empty
+	* @return the id of the head
+	*
+	*/
+	public int peekId(){
+		return this.isEmpty() ? -1 : this.ids[0];
+	}
+
+    /**
+	* Retrieves and removes the point with the furthest distance from the query or returns null if this priority queue is empty.
+	*
+	* @return the root/head of the priority queue (the point with the furthest distance from the priority queue), or null (if PQ is empty)
+	* @throws IllegalStateException if the queue holds ids without a set of points
+	*
+	*/
+    public LabelledPoint poll(){
+    	if (this.isEmpty()){
+    		return null;
+    	}
+    	LabelledPoint head = this.peek();
+
+    	// the last element is moved to the root and then sifted down, like the remove method of the heap implementation
+    	this.size--;
+    	if(this.size > 0){
+    		LabelledPoint last = this.points == null ? null : this.points[this.size];
+    		this.downheap(0, this.ids[this.size], this.keys[this.size], last);
+    	}
+    	if(this.points != null){
+    		this.points[this.size] = null;
+    	}
+    	return head;
+    }
+
+    /**
+	* Retrieves but does not remove the point with the furthest distance from the query or returns null if this priority queue is empty.
+	*
+	* @return the head of the priority queue (the point with the furthest distance from the priority queue), or null (if PQ is empty)
+	* @throws IllegalStateException if the queue holds ids without a set of points
+	*
+	*/
+    public LabelledPoint peek(){
+    	if (this.isEmpty()){
+    		return null;
+    	}
+    	if(this.points != null && this.points[0] != null){
+    		return this.points[0];
+    	}
+    	if(this.pointsS == null){
+    		throw new IllegalStateException("the queue holds ids without a set of points, they are read with peekId or drainSorted");
+    	}
+    	LabelledPoint head = this.pointsS.getPoint(this.ids[0]);
+    	head.setKey(this.keys[0]);
+    	return head;
+    }
+
+    /**
+	*
+	* Returns the size of the PQ
+	* @return the size of the priority queue
+	*
+	*/
+    public int size(){
+    	return size;
+    }
+
+    /**
+	*Checks if the current PQ is empty.
+	*
+	*@return if the PQ is empty
+	*
+	*/
+    public boolean isEmpty(){
+    	return size == 0;
+    }
+
+    /**
+	*
+	* Moves up the element at index i until its parent has a key at least as big. The elements on the way are shifted down
+	* instead of being swapped, and the new element is only written once at its final index.
+	*
+	*/
+    private void upheap(int i, int id, double key, LabelledPoint e){
+    	while(i > 0){
+    		int parent = (i-1)/2;
+    		if(key <= this.keys[parent]){
+    			break;
+    		}
+    		this.move(parent, i);
+    		i = parent;
+    	}
+    	this.set(i, id, key, e);
+    }
+
+    /**
+	*
+	* Moves down the element placed at index i until both its children have smaller keys. The elements on the way are shifted
+	* up instead of being swapped, and the new element is only written once at its final index.
+	*
+	*/
+    private void downheap(int i, int id, double key, LabelledPoint e){
+    	int half = this.size / 2;
+    	while(i < half){
+    		int bigChildIndex = 2*i + 1;
+    		if(bigChildIndex + 1 < this.size && this.keys[bigChildIndex] < this.keys[bigChildIndex + 1]){
+    			bigChildIndex++;
+    		}
+    		if(key >= this.keys[bigChildIndex]){
+    			break;
+    		}
+    		this.move(bigChildIndex, i);
+    		i = bigChildIndex;
+    	}
+    	this.set(i, id, key, e);
+    }
+
+    // copies the element at index from to index to
+    private void move(int from, int to){
+    	this.keys[to] = this.keys[from];
+    	this.ids[to] = this.ids[from];
+    	if(this.points != null){
+    		this.points[to] = this.points[from];
+    	}
+    }
+
+    // writes the element at index i
+    private void set(int i, int id, double key, LabelledPoint e){
+    	this.keys[i] = key;
+    	this.ids[i] = id;
+    	if(this.points != null){
+    		this.points[i] = e;
+    	}
+    }
+
+    /**
+	*
+	* Adds the work of the query to the metrics of PriorityQueue4 when they are on, called once per query by the engine filling
+	* the queue: the distances it evaluated for the queue, and the points inserted, the others being counted as rejected
+	* @param evaluated the number of distances evaluated, the partial ones abandoned included
+	*
+	*/
+    public void countWork(long evaluated){
+    	if(Metrics.isEnabled()){
+    		Metrics.countQueue(4, evaluated, this.inserts);
+    	}
+    }
+
+    /**
+	*
+	* Empties the queue into the given arrays, starting with the point with the closest distance to the query
+	* @param idsOut receives the ids, must have room for size() elements
+	* @param keysOut receives the keys, must have room for size() elements (can be null)
+	* @return the number of elements written
+	*
+	*/
+    public int drainSorted(int[] idsOut, double[] keysOut){
+    	int n = this.size;
+    	// the head is always the furthest point, so we fill the arrays from the end
+    	for(int i = n-1; i >= 0; --i){
+    		idsOut[i] = this.ids[0];
+    		if(keysOut != null){
+    			keysOut[i] = this.keys[0];
+    		}
+    		this.size--;
+    		if(this.size > 0){
+    			LabelledPoint last = this.points == null ? null : this.points[this.size];
+    			this.downheap(0, this.ids[this.size], this.keys[this.size], last);
+    		}
+    	}
+    	return n;
+    }
+
+    /**
+     * Offers all the points from the set of points to the PQ, and returns the ArrayList which contains all k points that are
+     * closest to the query, starting with the closest one. Only the ids and keys are stored while scanning, the LabelledPoint
+     * instances are created for the k points found.
+     *
+     * @return the final ArrayList containing the k nearest points to the query.
+     */
+    public ArrayList<LabelledPoint> findKNN(){
+    	if(this.k == 0){
+    		return new ArrayList<LabelledPoint>();
+    	}
+    	final float[] query = this.queryV.getData();
+    	final int queryOff = this.queryV.getOffset();
+    	final int d = this.pointsS.getDimension();
+
+    	this.pointsS.scan(0, this.pointsS.size(), (first, rows, data, off) -> {
+    		this.evaluations += rows;
+    		for(int r = 0; r < rows; r++){
+    			// the squared distance is abandoned part of the way through the vector once it is over the square of the bound
+    			double limit = this.bound();
+    			double squared = LabelledPoint.squaredDistance(data, off + r*d, query, queryOff, d, limit * limit);
+    			if(squared <= limit * limit){
+    				this.offer(first + r, Math.sqrt(squared));
+    			}
+    		}
+    	});
+    	this.countWork(this.evaluations);
+
+    	int n = this.size;
+    	int[] sortedIds = new int[n];
+    	double[] sortedKeys = new double[n];
+    	this.drainSorted(sortedIds, sortedKeys);
+
+    	ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(n);
+    	for(int i = 0; i < n; i++){
+    		LabelledPoint point = this.pointsS.getPoint(sortedIds[i]);
+    		point.setKey(sortedKeys[i]);
+    		finalKNN.add(point);
+    	}
+    	return finalKNN;
+    }
+
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+This class represents a product quantization (PQ) index, for approximate k nearest neighbors search on vectors compressed to a
+few bytes. The coordinates are split into m sub-vectors, and the sub-vectors of each part are quantized by their own k-means
+of at most 256 centroids trained on a sample of the points, so a point is stored as m bytes instead of 4d (16 bytes for a SIFT
+vector instead of 512, 32 times less memory).
+
+A query computes once the table of the squared distances from each of its sub-vectors to the centroids of the part, then the
+squared distance to a point is approximated by adding up m values of the table (asymmetric distance computation, the query is
+not quantized). Optionally the rerank nearest points by this distance are compared again with their exact vectors, read from
+the set of points (a mapped set only reads those rows from the disk), and the k nearest are kept.
+
+*/
+public class ProductQuantizationIndex implements PersistentIndex{
+
+	/**
+	 * represents the set of points the index is built on, read only by the exact re-rank
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * the number of sub-vectors, the part j being the coordinates [partStart[j], partStart[j + 1])
+	 */
+	private int m;
+	private int[] partStart;
+
+	/**
+	 * the number of centroids of each part, at most 256 so a code fits in a byte
+	 */
+	private int ksub;
+
+	/**
+	 * the centroids of each part, one after the other
+	 */
+	private float[][] centroids;
+
+	/**
+	 * the codes of the points, m bytes per point
+	 */
+	private byte[] codes;
+
+	/**
+	 * the number of nearest points by the approximate distance compared again with their exact vectors, 0 for none
+	 */
+	private int rerank;
+
+	// the number of sub-vectors when it is not given, for a vector of 128 coordinates it is 8 coordinates per byte of code
+	static int defaultM(int dimension){
+		return Math.max(1, dimension / 8);
+	}
+
+	// the number of centroids of a part when it is not given
+	static final int DEFAULT_KSUB = 256;
+
+	// the number of points sampled per centroid to train the sub-quantizers when it is not given
+	static final int DEFAULT_SAMPLE_PER_CENTROID = 40;
+
+	// the number of k-means iterations when it is not given
+	static final int DEFAULT_ITERATIONS = 10;
+
+	// class constructor that trains the sub-quantizers on a sample of sampleSize points and encodes all the points
+	public ProductQuantizationIndex(PointSet ps, int mInput, int ksubInput, int sampleSize, int iterations, int rerankInput, long seed){
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		int n = ps.size();
+		int d = this.dimension;
+		this.m = Math.max(1, Math.min(mInput, d));
+		// an empty set of points has no centroid
+		this.ksub = Math.min(Math.max(1, Math.min(ksubInput, 256)), n);
+		this.rerank = Math.max(0, rerankInput);
+
+		// the parts have the same length, give or take one coordinate
+		this.partStart = new int[this.m + 1];
+		for(int j = 0; j <= this.m; j++){
+			this.partStart[j] = j * d / this.m;
+		}
+
+		Random random = new Random(seed);
+		int size = Math.max(this.ksub, Math.min(sampleSize, n));
+		float[] sampled = KMeans.sample(ps, size, random);
+
+		this.centroids = new float[this.m][];
+		for(int j = 0; j < this.m; j++){
+			int length = this.partStart[j + 1] - this.partStart[j];
+			float[] parts = new float[size * length];
+			for(int i = 0; i < size; i++){
+				System.arraycopy(sampled, i * d + this.partStart[j], parts, i * length, length);
+			}
+			this.centroids[j] = KMeans.train(parts, size, length, this.ksub, iterations, random);
+		}
+
+		this.codes = new byte[n * this.m];
+		ps.scan(0, n, (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				for(int j = 0; j < this.m; j++){
+					int length = this.partStart[j + 1] - this.partStart[j];
+					int code = KMeans.nearest(this.centroids[j], this.ksub, length, data, off + r*d + this.partStart[j]);
+					this.codes[(first + r) * this.m + j] = (byte) code;
+				}
+			}
+		});
+
+	}
+
+	// constructs the index with the default parameters and no re-rank
+	public ProductQuantizationIndex(PointSet ps){
+		this(ps, defaultM(ps.getDimension()), DEFAULT_KSUB, DEFAULT_SAMPLE_PER_CENTROID * DEFAULT_KSUB, DEFAULT_ITERATIONS, 0, 42);
+	}
+
+	// class constructor that reads the codebooks and the codes saved in an index file of the given set of points
+	public ProductQuantizationIndex(PointSet ps, IndexFile file) throws IOException{
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.m = file.getInt("m");
+		this.ksub = file.getInt("ksub");
+		this.rerank = file.getInt("rerank");
+		this.partStart = file.getInts("partStart");
+		this.codes = file.getBytes("codes");
+
+		// the centroids of the parts were saved one part after the other
+		float[] all = file.getFloats("centroids");
+		this.centroids = new float[this.m][];
+		int position = 0;
+		for(int j = 0; j < this.m; j++){
+			int length = this.ksub * (this.partStart[j + 1] - this.partStart[j]);
+			this.centroids[j] = Arrays.copyOfRange(all, position, position + length);
+			position += length;
+		}
+
+	}
+
+	/**
+	 * Saves the codebooks and the codes to an index file, without the vectors, which the re-rank reads from the set of points
+	 *
+	 * @param filename the path of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String filename) throws IOException{
+		int total = 0;
+		for(float[] part : this.centroids){
+			total += part.length;
+		}
+		float[] all = new float[total];
+		int position = 0;
+		for(float[] part : this.centroids){
+			System.arraycopy(part, 0, all, position, part.length);
+			position += part.length;
+		}
+
+		IndexFile.Writer out = new IndexFile.Writer("pq", this.pointsS);
+		out.putInt("m", this.m);
+		out.putInt("ksub", this.ksub);
+		out.putInt("rerank", this.rerank);
+		out.putInts("partStart", this.partStart);
+		out.putFloats("centroids", all);
+		out.putBytes("codes", this.codes);
+		out.write(filename);
+	}
+
+	/**
+	 * Computes the table of the squared distances from each sub-vector of the query to the centroids of its part
+	 *
+	 * @return the squared distances, ksub per part, part after part
+	 */
+	private float[] distanceTable(float[] query, int queryOff){
+		float[] table = new float[this.m * this.ksub];
+		for(int j = 0; j < this.m; j++){
+			int length = this.partStart[j + 1] - this.partStart[j];
+			for(int c = 0; c < this.ksub; c++){
+				table[j * this.ksub + c] = (float) LabelledPoint.squaredDistance(this.centroids[j], c * length, query, queryOff + this.partStart[j], length);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query, re-ranking the default number of points
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		return this.findKNN(query, k, this.rerank);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query by their approximate distances, then compares the nearest ones again with
+	 * their exact vectors
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @param candidates the number of points compared again, 0 to keep the approximate distances
+	 * @return the k nearest points found, starting with the closest one, their keys being exact distances when re-ranked
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k, int candidates){
+		int n = this.pointsS.size();
+		int m = this.m;
+		int ksub = this.ksub;
+		byte[] codes = this.codes;
+		float[] queryData = query.getData();
+		int queryOff = query.getOffset();
+		float[] table = this.distanceTable(queryData, queryOff);
+
+		PriorityQueue4 pq = new PriorityQueue4(Math.max(k, candidates));
+		for(int i = 0; i < n; i++){
+			int base = i * m;
+			float squared = 0;
+			for(int j = 0; j < m; j++){
+				squared += table[j * ksub + (codes[base + j] & 0xFF)];
+			}
+			if(squared < pq.bound()){
+				pq.offer(i, squared);
+			}
+		}
+		pq.countWork(n);
+
+		int size = pq.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		pq.drainSorted(ids, keys);
+
+		if(candidates > 0){
+			// the candidates are compared with their exact vectors, the vector of a mapped set is copied
+			int d = this.dimension;
+			float[] vectors = this.pointsS.getVectors();
+			float[] row = new float[d];
+			PriorityQueue4 exact = new PriorityQueue4(k);
+			for(int i = 0; i < size; i++){
+				double squared;
+				if(vectors != null){
+					squared = LabelledPoint.squaredDistance(vectors, ids[i] * d, queryData, queryOff, d, exact.bound());
+				}
+				else{
+					this.pointsS.copyRows(ids[i], 1, row, 0);
+					squared = LabelledPoint.squaredDistance(row, 0, queryData, queryOff, d, exact.bound());
+				}
+				if(squared < exact.bound()){
+					exact.offer(ids[i], squared);
+				}
+			}
+			exact.countWork(size);
+			size = exact.size();
+			exact.drainSorted(ids, keys);
+		}
+
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(k);
+		for(int i = 0; i < Math.min(k, size); i++){
+			LabelledPoint point = this.pointsS.getPoint(ids[i]);
+			point.setKey(Math.sqrt(keys[i]));
+			finalKNN.add(point);
+		}
+		return finalKNN;
+	}
+
+	/**
+	 * Changes the number of points re-ranked for the queries that do not give it
+	 *
+	 * @param rerankInput the number of points compared again with their exact vectors, 0 for none
+	 */
+	public void setRerank(int rerankInput){
+		this.rerank = Math.max(0, rerankInput);
+	}
+
+	// gets the number of bytes of the codes, the memory the index needs for the points
+	public long codeBytes(){
+		return this.codes.length;
+	}
+
+}
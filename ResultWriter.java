@@ -0,0 +1,250 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+This class represents the output of the results of the queries, written on a thread of its own: the threads answering the
+queries only copy the labels (and distances) of each result and put them in an unbounded queue, so they never wait for the
+file or the console. The writer thread takes the results back in the order of the queries, whatever order they were answered
+in, and writes them through a buffer of 1 MB in one of two formats:
+- text: the format of the result files, "i: label1, label2, ...", starting with the closest point, each label followed by
+  ":distance" when the distances are written
+- ivecs: for each query its number of results then their labels, as little-endian ints, the distances going as fvecs vectors
+  to a second file with the same name ending in "_distances.fvecs"
+Each text line can also be printed to the console, from the writer thread.
+
+The writer is told how many results to expect, so a query whose result is never given (its thread failed) makes close throw
+an IOException naming the missing queries instead of leaving a file that silently stops early. Once the writer thread stopped
+on an error, write throws it instead of queueing results that would never be written.
+
+*/
+public class ResultWriter implements AutoCloseable{
+
+	// the result of a query, as the writer thread receives it
+	private static class Result{
+		final int index;
+		final int[] labels;
+		final float[] distances;
+
+		Result(int index, int[] labels, float[] distances){
+			this.index = index;
+			this.labels = labels;
+			this.distances = distances;
+		}
+	}
+
+	// tells the writer thread that all the results were given
+	private static final Result END = new Result(-1, null, null);
+
+	// the size of the buffers of the files
+	static final int BUFFER_BYTES = 1 << 20;
+
+	/**
+	 * the results given and not yet written
+	 */
+	private LinkedBlockingQueue<Result> queue = new LinkedBlockingQueue<Result>();
+
+	/**
+	 * the files the results are written to, the second one only for the distances of the ivecs format
+	 */
+	private OutputStream out;
+	private OutputStream distanceOut;
+
+	/**
+	 * if the results are written as ivecs, if the distances are written, and if the text lines are printed to the console
+	 */
+	private boolean binary;
+	private boolean distances;
+	private boolean echo;
+
+	/**
+	 * the number of results expected, one for each query
+	 */
+	private int count;
+
+	/**
+	 * the thread writing the results, and the error that stopped it if any
+	 */
+	private Thread thread;
+	private volatile IOException error;
+	private boolean closed = false;
+
+	// class constructor that opens the files and starts the writer thread, the results of the queries 0 to countInput - 1 being expected
+	public ResultWriter(String filename, int countInput, boolean binaryInput, boolean distancesInput, boolean echoInput) throws IOException{
+		this.count = countInput;
+		this.binary = binaryInput;
+		this.distances = distancesInput;
+		this.echo = echoInput;
+		this.out = new BufferedOutputStream(new FileOutputStream(filename), BUFFER_BYTES);
+		if(binaryInput && distancesInput){
+			String stem = filename.endsWith(".ivecs") ? filename.substring(0, filename.length() - ".ivecs".length()) : filename;
+			this.distanceOut = new BufferedOutputStream(new FileOutputStream(stem + "_distances.fvecs"), BUFFER_BYTES);
+		}
+
+		this.thread = new Thread(this::run, "knn-result-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+
+	}
+
+	/**
+	 * Gives the result of a query to the writer thread, without waiting for it to be written. Can be called from several
+	 * threads, in any order of the queries
+	 *
+	 * @param index the index of the query, each one from 0 given once
+	 * @param kNearestN the nearest neighbors of the query, starting with the closest one
+	 * @throws IOException if the writer thread stopped on an error, or the writer is closed
+	 */
+	public void write(int index, ArrayList<LabelledPoint> kNearestN) throws IOException{
+		// the writer thread is not running anymore, the result would never be written
+		if(this.error != null){
+			throw new IOException("Error! The result of query " + index + " cannot be written", this.error);
+		}
+		if(this.closed){
+			throw new IOException("Error! The result of query " + index + " was given after the writer was closed");
+		}
+		int[] labels = new int[kNearestN.size()];
+		float[] keys = this.distances ? new float[kNearestN.size()] : null;
+		for(int j = 0; j < labels.length; j++){
+			labels[j] = kNearestN.get(j).getLabel();
+			if(keys != null){
+				keys[j] = (float) kNearestN.get(j).getKey();
+			}
+		}
+		this.queue.add(new Result(index, labels, keys));
+	}
+
+	// the writer thread: takes the results and writes them in the order of the queries, keeping the ones that come early
+	private void run(){
+		HashMap<Integer, Result> early = new HashMap<Integer, Result>();
+		int next = 0;
+		StringBuilder line = new StringBuilder();
+		ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+		try{
+			for(Result result = this.queue.take(); result != END; result = this.queue.take()){
+				early.put(result.index, result);
+				for(Result ready = early.remove(next); ready != null; ready = early.remove(next)){
+					if(this.binary){
+						this.writeBinary(ready, buffer);
+					}
+					if(!this.binary || this.echo){
+						this.format(ready, line);
+						line.append('\n');
+						if(!this.binary){
+							this.out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+						}
+						if(this.echo){
+							System.out.print(line);
+						}
+					}
+					next++;
+				}
+			}
+			this.out.flush();
+			if(next < this.count){
+				this.error = new IOException("Error! The results of the queries " + missing(early, next, this.count)
+					+ " were never given, the results stop at query " + next);
+			}
+			if(this.distanceOut != null){
+				this.distanceOut.flush();
+			}
+		}
+		catch(IOException exception){
+			this.error = exception;
+		}
+		catch(InterruptedException exception){
+			this.error = new IOException("Error! The result writer was interrupted", exception);
+		}
+		catch(RuntimeException exception){
+			this.error = new IOException("Error! The result writer failed", exception);
+		}
+	}
+
+	// lists the indexes from first to count - 1 that have no result, at most 10 of them
+	private static String missing(HashMap<Integer, Result> early, int first, int count){
+		StringBuilder list = new StringBuilder();
+		int listed = 0;
+		for(int i = first; i < count; i++){
+			if(early.containsKey(i)){
+				continue;
+			}
+			if(listed == 10){
+				list.append(", ...");
+				break;
+			}
+			list.append(listed == 0 ? "" : ", ").append(i);
+			listed++;
+		}
+		return list.toString();
+	}
+
+	// writes the text line of a result in the line, "i: label1, label2, ..." or "i: label1:distance1, ..."
+	private void format(Result result, StringBuilder line){
+		line.setLength(0);
+		line.append(result.index).append(": ");
+		for(int j = 0; j < result.labels.length; j++){
+			line.append(j == 0 ? "" : ", ").append(result.labels[j]);
+			if(this.distances){
+				line.append(':').append(result.distances[j]);
+			}
+		}
+	}
+
+	// writes a result as an ivecs vector, and its distances as an fvecs vector
+	private void writeBinary(Result result, ByteBuffer buffer) throws IOException{
+		writeInt(this.out, buffer, result.labels.length);
+		for(int label : result.labels){
+			writeInt(this.out, buffer, label);
+		}
+		if(this.distanceOut != null){
+			writeInt(this.distanceOut, buffer, result.distances.length);
+			for(float distance : result.distances){
+				writeInt(this.distanceOut, buffer, Float.floatToIntBits(distance));
+			}
+		}
+	}
+
+	// writes an int as 4 little-endian bytes
+	private static void writeInt(OutputStream stream, ByteBuffer buffer, int value) throws IOException{
+		buffer.putInt(0, value);
+		stream.write(buffer.array(), 0, 4);
+	}
+
+	/**
+	 * Waits for the writer thread to write all the results given, then closes the files
+	 *
+	 * @throws IOException if a result could not be written, or the result of a query was never given
+	 */
+	public void close() throws IOException{
+		if(this.closed){
+			return;
+		}
+		this.closed = true;
+		this.queue.add(END);
+		try{
+			this.thread.join();
+		}
+		catch(InterruptedException exception){
+			Thread.currentThread().interrupt();
+			throw new IOException("Error! Interrupted while waiting for the result writer", exception);
+		}
+		finally{
+			this.out.close();
+			if(this.distanceOut != null){
+				this.distanceOut.close();
+			}
+		}
+		if(this.error != null){
+			throw this.error;
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+/* 
+This class represents the distance loops written coordinate by coordinate, used when the vector API is not available.
+*/
+
+class ScalarDistanceKernel implements DistanceKernel {
+
+    // the number of coordinates summed between two checks of the bound in squaredDistance
+    static final int ABANDON_STEP = 16;
+
+    // the coordinates are summed in the same order whatever the bound, so a result under the bound is the exact squared distance
+    public double squaredDistance(float[] a, int aOff, float[] b, int bOff, int length, double bound) {
+        double sum = 0;
+        int i = aOff;
+        int j = bOff;
+        int end = aOff + length;
+        while (i < end) {
+            int stop = Math.min(i + ABANDON_STEP, end);
+            for (; i < stop; i++, j++) {
+                float diff = a[i] - b[j];
+                sum += diff * diff;
+            }
+            if (sum > bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    public double innerProduct(float[] a, int aOff, float[] b, int bOff, int length) {
+        double sum = 0;
+        int j = bOff;
+        int end = aOff + length;
+        for (int i = aOff; i < end; i++, j++) {
+            sum += a[i] * b[j];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+This class represents a copy of a set of points with its coordinates quantized one by one, for k nearest neighbors search
+reading 2 or 4 times fewer bytes than the float vectors:
+- int8: each coordinate j is stored as a byte c, the value being offset[j] + scale[j] * (c + 128), offset and scale being
+  chosen so the smallest and largest values of the coordinate over the set are exact
+- float16: each coordinate is stored as a half precision float (IEEE 754 binary16) in a short, converted by hand since
+  Float.floatToFloat16 only comes with Java 20
+
+The set is scanned with the distance from the float query to the quantized vectors, the kernels working directly on the
+bytes or shorts, and the nearest candidates (at least k) are compared again with their exact float vectors, so the keys of the
+results are exact distances.
+
+*/
+public class ScalarQuantizedIndex implements PersistentIndex{
+
+	/**
+	 * represents the set of points quantized, read only by the exact re-rank
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * whether the coordinates are stored as float16 instead of int8
+	 */
+	private boolean halfPrecision;
+
+	/**
+	 * the int8 codes of the coordinates, point after point, and the offset and scale of each coordinate
+	 */
+	private byte[] codes;
+	private float[] offset;
+	private float[] scale;
+
+	/**
+	 * the float16 coordinates, point after point
+	 */
+	private short[] halves;
+
+	/**
+	 * the number of candidates compared again with their exact vectors when it is not given, 0 for k
+	 */
+	private int rerank;
+
+	// the number of coordinates summed between two checks of the bound, like in ScalarDistanceKernel
+	static final int ABANDON_STEP = 16;
+
+	// the value of every byte as a float, by its 8 bits, read from the table instead of converting each code
+	private static final float[] BYTE_TO_FLOAT = new float[1 << 8];
+
+	// the value of every float16, by its 16 bits
+	private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+	static{
+		for(int b = 0; b < BYTE_TO_FLOAT.length; b++){
+			BYTE_TO_FLOAT[b] = (byte) b;
+		}
+		for(int h = 0; h < HALF_TO_FLOAT.length; h++){
+			HALF_TO_FLOAT[h] = halfToFloat((short) h);
+		}
+	}
+
+	// class constructor that quantizes all the points of the set
+	public ScalarQuantizedIndex(PointSet ps, boolean halfPrecisionInput, int rerankInput){
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.halfPrecision = halfPrecisionInput;
+		this.rerank = Math.max(0, rerankInput);
+
+		int n = ps.size();
+		int d = this.dimension;
+
+		if(this.halfPrecision){
+			this.halves = new short[n * d];
+			ps.scan(0, n, (first, rows, data, off) -> {
+				for(int i = 0; i < rows * d; i++){
+					this.halves[first * d + i] = floatToHalf(data[off + i]);
+				}
+			});
+			return;
+		}
+
+		// the range of each coordinate over the set
+		float[] min = new float[d];
+		float[] max = new float[d];
+		Arrays.fill(min, Float.POSITIVE_INFINITY);
+		Arrays.fill(max, Float.NEGATIVE_INFINITY);
+		ps.scan(0, n, (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				for(int j = 0; j < d; j++){
+					min[j] = Math.min(min[j], data[off + r*d + j]);
+					max[j] = Math.max(max[j], data[off + r*d + j]);
+				}
+			}
+		});
+
+		this.offset = new float[d];
+		this.scale = new float[d];
+		for(int j = 0; j < d; j++){
+			this.offset[j] = n == 0 ? 0 : min[j];
+			this.scale[j] = n == 0 ? 0 : (max[j] - min[j]) / 255;
+		}
+
+		this.codes = new byte[n * d];
+		ps.scan(0, n, (first, rows, data, off) -> {
+			for(int r = 0; r < rows; r++){
+				for(int j = 0; j < d; j++){
+					int level = this.scale[j] == 0 ? 0 : Math.round((data[off + r*d + j] - this.offset[j]) / this.scale[j]);
+					this.codes[(first + r) * d + j] = (byte) (Math.max(0, Math.min(255, level)) - 128);
+				}
+			}
+		});
+
+	}
+
+	// class constructor that reads the quantized vectors saved in an index file of the given set of points
+	public ScalarQuantizedIndex(PointSet ps, IndexFile file) throws IOException{
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.halfPrecision = file.getInt("halfPrecision") != 0;
+		this.rerank = file.getInt("rerank");
+		if(this.halfPrecision){
+			this.halves = file.getShorts("halves");
+		}
+		else{
+			this.codes = file.getBytes("codes");
+			this.offset = file.getFloats("offset");
+			this.scale = file.getFloats("scale");
+		}
+
+	}
+
+	/**
+	 * Saves the quantized vectors to an index file, without the float vectors, which the re-rank reads from the set of points
+	 *
+	 * @param filename the path of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String filename) throws IOException{
+		IndexFile.Writer out = new IndexFile.Writer("sq", this.pointsS);
+		out.putInt("halfPrecision", this.halfPrecision ? 1 : 0);
+		out.putInt("rerank", this.rerank);
+		if(this.halfPrecision){
+			out.putShorts("halves", this.halves);
+		}
+		else{
+			out.putBytes("codes", this.codes);
+			out.putFloats("offset", this.offset);
+			out.putFloats("scale", this.scale);
+		}
+		out.write(filename);
+	}
+
+	/**
+	 * Converts a float to the nearest float16, ties to even, the values too large for a float16 becoming infinite
+	 *
+	 * @param value the float
+	 * @return the bits of the float16
+	 */
+	public static short floatToHalf(float value){
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xFF;
+		int mantissa = bits & 0x7FFFFF;
+
+		// infinity and NaN, a NaN keeping a bit of its mantissa so it stays a NaN
+		if(exponent == 0xFF){
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+
+		int halfExponent = exponent - 127 + 15;
+		if(halfExponent >= 0x1F){
+			return (short) (sign | 0x7C00);
+		}
+
+		if(halfExponent <= 0){
+			// a subnormal float16, or zero when the value is too small
+			if(halfExponent < -10){
+				return (short) sign;
+			}
+			mantissa |= 0x800000;
+			int shift = 14 - halfExponent;
+			int half = mantissa >> shift;
+			int rest = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if(rest > halfway || (rest == halfway && (half & 1) != 0)){
+				half++;
+			}
+			return (short) (sign | half);
+		}
+
+		int half = (halfExponent << 10) | (mantissa >> 13);
+		int rest = mantissa & 0x1FFF;
+		// rounding up can carry into the exponent, up to infinity, which is the right result
+		if(rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)){
+			half++;
+		}
+		return (short) (sign | half);
+	}
+
+	/**
+	 * Converts a float16 to the float of the same value
+	 *
+	 * @param half the bits of the float16
+	 * @return the float
+	 */
+	public static float halfToFloat(short half){
+		int bits = half & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+
+		if(exponent == 0x1F){
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+		if(exponent == 0){
+			// zero or a subnormal float16, which is a normal float
+			float value = mantissa * 0x1p-24f;
+			return sign == 0 ? value : -value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Computes the squared distance from the query to the point of the int8 codes, returning early once it is larger than
+	 * the bound. With t[j] = q[j] - offset[j] - 128 * scale[j] computed once per query, the coordinate j adds
+	 * (t[j] - scale[j] * c)^2
+	 *
+	 * @return the squared distance, or a partial sum larger than the bound
+	 */
+	private static double squaredDistanceInt8(byte[] codes, int codeOff, float[] t, float[] scale, double bound){
+		double sum = 0;
+		int length = t.length;
+		int j = 0;
+		while(j < length){
+			int stop = Math.min(j + ABANDON_STEP, length);
+			for(; j < stop; j++){
+				float diff = t[j] - scale[j] * BYTE_TO_FLOAT[codes[codeOff + j] & 0xFF];
+				sum += diff * diff;
+			}
+			if(sum > bound){
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Computes the squared distance from the query to the point of the float16 coordinates, returning early once it is larger
+	 * than the bound
+	 *
+	 * @return the squared distance, or a partial sum larger than the bound
+	 */
+	private static double squaredDistanceHalf(short[] halves, int halfOff, float[] query, int queryOff, int length, double bound){
+		double sum = 0;
+		int j = 0;
+		while(j < length){
+			int stop = Math.min(j + ABANDON_STEP, length);
+			for(; j < stop; j++){
+				float diff = query[queryOff + j] - HALF_TO_FLOAT[halves[halfOff + j] & 0xFFFF];
+				sum += diff * diff;
+			}
+			if(sum > bound){
+				return sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query, re-ranking the default number of candidates
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		return this.findKNN(query, k, this.rerank);
+	}
+
+	/**
+	 * Finds the nearest candidates by their distances to the quantized vectors, then the k nearest among them by their
+	 * exact distances
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @param candidates the number of candidates compared with their exact vectors, at least k
+	 * @return the k nearest points found, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k, int candidates){
+		int n = this.pointsS.size();
+		int d = this.dimension;
+		float[] queryData = query.getData();
+		int queryOff = query.getOffset();
+
+		PriorityQueue4 pq = new PriorityQueue4(Math.max(k, candidates));
+		if(this.halfPrecision){
+			for(int i = 0; i < n; i++){
+				double bound = pq.bound();
+				double squared = squaredDistanceHalf(this.halves, i * d, queryData, queryOff, d, bound);
+				if(squared < bound){
+					pq.offer(i, squared);
+				}
+			}
+		}
+		else{
+			float[] t = new float[d];
+			for(int j = 0; j < d; j++){
+				t[j] = queryData[queryOff + j] - this.offset[j] - 128 * this.scale[j];
+			}
+			for(int i = 0; i < n; i++){
+				double bound = pq.bound();
+				double squared = squaredDistanceInt8(this.codes, i * d, t, this.scale, bound);
+				if(squared < bound){
+					pq.offer(i, squared);
+				}
+			}
+		}
+		pq.countWork(n);
+
+		int size = pq.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		pq.drainSorted(ids, keys);
+
+		// the candidates are compared with their exact vectors, the vector of a mapped set is copied
+		float[] vectors = this.pointsS.getVectors();
+		float[] row = new float[d];
+		PriorityQueue4 exact = new PriorityQueue4(k);
+		for(int i = 0; i < size; i++){
+			double squared;
+			if(vectors != null){
+				squared = LabelledPoint.squaredDistance(vectors, ids[i] * d, queryData, queryOff, d, exact.bound());
+			}
+			else{
+				this.pointsS.copyRows(ids[i], 1, row, 0);
+				squared = LabelledPoint.squaredDistance(row, 0, queryData, queryOff, d, exact.bound());
+			}
+			if(squared < exact.bound()){
+				exact.offer(ids[i], squared);
+			}
+		}
+		exact.countWork(size);
+		size = exact.size();
+		exact.drainSorted(ids, keys);
+
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(size);
+		for(int i = 0; i < size; i++){
+			LabelledPoint point = this.pointsS.getPoint(ids[i]);
+			point.setKey(Math.sqrt(keys[i]));
+			finalKNN.add(point);
+		}
+		return finalKNN;
+	}
+
+	/**
+	 * Changes the number of candidates re-ranked for the queries that do not give it
+	 *
+	 * @param rerankInput the number of candidates compared with their exact vectors, 0 for k
+	 */
+	public void setRerank(int rerankInput){
+		this.rerank = Math.max(0, rerankInput);
+	}
+
+	// gets the number of bytes of the quantized vectors
+	public long quantizedBytes(){
+		return this.halfPrecision ? 2L * this.halves.length : this.codes.length;
+	}
+
+}
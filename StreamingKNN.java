@@ -0,0 +1,177 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+This class represents the implementation of finding the k nearest neighbors for a batch of query points without loading the
+set of points. The fvecs file of the points is read once, sequentially, in chunks of a fixed number of rows, and every chunk
+is offered to one bounded priority queue per query (the same role the priority queues play in their findKNN methods), so the
+memory used only depends on the chunk size, the number of queries and k.
+
+*/
+public class StreamingKNN{
+
+	/**
+	 * the number of nearest neighbors we want to find, used to initalize the priority queue capacity
+	 */
+	private int k;
+
+	/**
+	 * the version of the priority queue used for each query (1, 2, 3 or 4)
+	 */
+	private int version;
+
+	/**
+	 * the query points of which we want to find the k nearest neighbors
+	 */
+	private PointSet queries;
+
+	/**
+	 * the number of query points used, taken from the start of the query set
+	 */
+	private int numQueries;
+
+	/**
+	 * the number of rows of the fvecs file read at a time
+	 */
+	private int chunkRows;
+
+	// class constructor that initializes all the instance variables
+	public StreamingKNN(int kInput, int versionInput, PointSet queriesInput, int numQueriesInput, int chunkRowsInput){
+		this.k = kInput;
+		this.version = versionInput;
+		this.queries = queriesInput;
+		this.numQueries = Math.min(numQueriesInput, queriesInput.size());
+		this.chunkRows = chunkRowsInput;
+
+	}
+
+	/**
+	 * Creates the bounded priority queue of the version asked. The queue has no query point, the points are offered with their
+	 * distance from the query already set as their key
+	 *
+	 * @return the new, empty priority queue
+	 */
+	private PriorityQueueIF<LabelledPoint> newQueue(){
+		if(this.version == 1){
+			return new PriorityQueue1(this.k, null, null);
+		}
+		else if(this.version == 2){
+			return new PriorityQueue2(this.k, null, null);
+		}
+		else if(this.version == 3){
+			return new PriorityQueue3(this.k, null, null);
+		}
+		else{
+			return new PriorityQueue4(this.k, null, null);
+		}
+	}
+
+	/**
+	 * Reads the fvecs file of the points chunk by chunk and offers every point to the priority queue of each query, then
+	 * returns for each query the ArrayList of its k nearest points, starting with the closest one.
+	 *
+	 * @param filename the fvecs file containing the set of points
+	 * @return the k nearest neighbors of each query, in the order of the queries
+	 * @throws IOException if the file cannot be read or is not a valid fvecs file
+	 */
+	public ArrayList<ArrayList<LabelledPoint>> findKNN(String filename) throws IOException{
+		int numQueries = this.numQueries;
+		ArrayList<PriorityQueueIF<LabelledPoint>> queues = new ArrayList<PriorityQueueIF<LabelledPoint>>(numQueries);
+		LabelledPoint[] queryPoints = new LabelledPoint[numQueries];
+		// the points inserted in the queue of each query, for the metrics
+		long[] inserts = new long[numQueries];
+		long evaluations = 0;
+
+		for(int q = 0; q < numQueries; q++){
+			queryPoints[q] = this.queries.getPoint(q);
+			queues.add(this.newQueue());
+		}
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+
+		try{
+			int d = Integer.reverseBytes(dis.readInt());
+			int vecSizeOf = 1 * 4 + d * 4;
+			long n = new File(filename).length() / vecSizeOf;
+
+			if(d <= 0 || n == 0 || d != this.queries.getDimension()){
+				throw new IOException("Error! Invalid file format...");
+			}
+
+			// the chunk is read as raw bytes, then its floats are copied row by row into a flat array, skipping the dimension
+			// at the start of each row (the one of the first row was already consumed above)
+			byte[] raw = new byte[this.chunkRows * vecSizeOf];
+			FloatBuffer rawFloats = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			float[] chunk = new float[this.chunkRows * d];
+
+			for(long first = 0; first < n; first += this.chunkRows){
+				int rows = (int) Math.min(this.chunkRows, n - first);
+				boolean last = first + rows == n;
+				evaluations += rows;
+
+				dis.readFully(raw, 0, rows * vecSizeOf - (last ? 4 : 0));
+				for(int r = 0; r < rows; r++){
+					rawFloats.position(r * (d + 1));
+					rawFloats.get(chunk, r * d, d);
+				}
+
+				// every query goes through the whole chunk before the next one, so the chunk stays in the cache
+				for(int q = 0; q < numQueries; q++){
+					PriorityQueueIF<LabelledPoint> pq = queues.get(q);
+					LabelledPoint query = queryPoints[q];
+
+					for(int r = 0; r < rows; r++){
+						// the squared distance is abandoned part of the way through the vector once it is over the square of the
+						// distance of the k-th nearest point so far
+						double limit = pq.size() < this.k ? Double.POSITIVE_INFINITY : pq.peek().getKey();
+						double squared = LabelledPoint.squaredDistance(chunk, r * d, query.getData(), query.getOffset(), d, limit * limit);
+						if(squared > limit * limit){
+							continue;
+						}
+						double dist = Math.sqrt(squared);
+
+						// the chunk is overwritten by the next read, so a point is copied only if it can enter the queue
+						if(dist < limit){
+							LabelledPoint point = new LabelledPoint(Arrays.copyOfRange(chunk, r * d, (r + 1) * d), 0, d, (int) (first + r));
+							point.setKey(dist);
+							if(pq.offer(point)){
+								inserts[q]++;
+							}
+						}
+					}
+				}
+			}
+		}
+		finally{
+			dis.close();
+		}
+
+		if(Metrics.isEnabled()){
+			for(int q = 0; q < numQueries; q++){
+				Metrics.countQueue(this.version, evaluations, inserts[q]);
+			}
+		}
+
+		ArrayList<ArrayList<LabelledPoint>> results = new ArrayList<ArrayList<LabelledPoint>>(numQueries);
+
+		// polling a queue gives the points from the furthest to the closest, so we fill each ArrayList from the end
+		for(int q = 0; q < numQueries; q++){
+			PriorityQueueIF<LabelledPoint> pq = queues.get(q);
+			LabelledPoint[] sorted = new LabelledPoint[pq.size()];
+			for(int i = sorted.length - 1; i >= 0; i--){
+				sorted[i] = pq.poll();
+			}
+			results.add(new ArrayList<LabelledPoint>(Arrays.asList(sorted)));
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+This class represents a vantage-point tree, a metric index for exact k nearest neighbors search that only relies on the
+triangle inequality of the Euclidean distance (LabelledPoint.distanceTo), so it keeps pruning in dimensions where a KD-tree
+has to visit every leaf. Each internal node has a vantage point, chosen at random, and the median mu of the distances from the
+vantage point to the other points of the node: the points closer than mu go inside, the others outside. The leaves are
+buckets of at most leafSize points, and the vectors are copied in the order of the tree.
+
+When the query is at distance dv from a vantage point and tau is the distance of the k-th nearest point found so far, the
+inside can only hold a closer point if dv - tau <= mu, and the outside only if dv + tau >= mu. The tree counts the distances
+it computes, so it can report how many a linear scan would have computed in addition.
+
+*/
+public class VPTree implements PersistentIndex{
+
+	/**
+	 * represents the set of points the tree is built on
+	 */
+	private PointSet pointsS;
+
+	/**
+	 * the length of the vectors
+	 */
+	private int dimension;
+
+	/**
+	 * the maximum number of points in a leaf
+	 */
+	private int leafSize;
+
+	/**
+	 * the vectors of the points, in the order of the tree
+	 */
+	private float[] vectors;
+
+	/**
+	 * the row, in the set of points, of each vector of the tree
+	 */
+	private int[] rows;
+
+	/**
+	 * the nodes of the tree, stored in parallel arrays. an internal node has its vantage point (the index of its vector), the
+	 * median distance mu and its two children (-1 when empty), a leaf has -1 as its vantage point and the range [start, end)
+	 * of its vectors
+	 */
+	private int[] vantage;
+	private double[] mu;
+	private int[] inside;
+	private int[] outside;
+	private int[] start;
+	private int[] end;
+	private int numNodes;
+
+	/**
+	 * the index of the root node, -1 if the set of points is empty
+	 */
+	private int root;
+
+	/**
+	 * the number of queries answered and the number of distances they computed, summed over all the threads
+	 */
+	private LongAdder queries = new LongAdder();
+	private LongAdder evaluations = new LongAdder();
+
+	// the maximum number of points in a leaf when it is not given
+	static final int DEFAULT_LEAF_SIZE = 16;
+
+	// class constructor that builds the tree over the given set of points, the vantage points being picked with the given seed
+	public VPTree(PointSet ps, int leafSizeInput, long seed){
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.leafSize = Math.max(1, leafSizeInput);
+
+		int n = ps.size();
+		int d = this.dimension;
+
+		float[] original = new float[n * d];
+		ps.copyRows(0, n, original, 0);
+		int[] perm = new int[n];
+		for(int i = 0; i < n; i++){
+			perm[i] = i;
+		}
+
+		int capacity = 2 * (n / this.leafSize + 1);
+		this.vantage = new int[capacity];
+		this.mu = new double[capacity];
+		this.inside = new int[capacity];
+		this.outside = new int[capacity];
+		this.start = new int[capacity];
+		this.end = new int[capacity];
+		this.numNodes = 0;
+		this.root = n == 0 ? -1 : this.build(original, perm, new double[n], 0, n, new Random(seed));
+
+		this.vectors = new float[n * d];
+		for(int i = 0; i < n; i++){
+			System.arraycopy(original, perm[i] * d, this.vectors, i * d, d);
+		}
+		this.rows = perm;
+
+	}
+
+	// constructs the tree with the default leaf size and seed
+	public VPTree(PointSet ps){
+		this(ps, DEFAULT_LEAF_SIZE, 42);
+	}
+
+	// class constructor that reads the tree saved in an index file of the given set of points
+	public VPTree(PointSet ps, IndexFile file) throws IOException{
+		this.pointsS = ps;
+		this.dimension = ps.getDimension();
+		this.leafSize = file.getInt("leafSize");
+		this.vectors = file.getFloats("vectors");
+		this.rows = file.getInts("rows");
+		this.vantage = file.getInts("vantage");
+		this.mu = file.getDoubles("mu");
+		this.inside = file.getInts("inside");
+		this.outside = file.getInts("outside");
+		this.start = file.getInts("start");
+		this.end = file.getInts("end");
+		this.numNodes = this.vantage.length;
+		this.root = file.getInt("root");
+
+	}
+
+	/**
+	 * Saves the tree to an index file, the arrays of the nodes being trimmed to the number of nodes
+	 *
+	 * @param filename the path of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String filename) throws IOException{
+		IndexFile.Writer out = new IndexFile.Writer("vp", this.pointsS);
+		out.putInt("leafSize", this.leafSize);
+		out.putInt("root", this.root);
+		out.putFloats("vectors", this.vectors);
+		out.putInts("rows", this.rows);
+		out.putInts("vantage", Arrays.copyOf(this.vantage, this.numNodes));
+		out.putDoubles("mu", Arrays.copyOf(this.mu, this.numNodes));
+		out.putInts("inside", Arrays.copyOf(this.inside, this.numNodes));
+		out.putInts("outside", Arrays.copyOf(this.outside, this.numNodes));
+		out.putInts("start", Arrays.copyOf(this.start, this.numNodes));
+		out.putInts("end", Arrays.copyOf(this.end, this.numNodes));
+		out.write(filename);
+	}
+
+	// adds a node and returns its index, growing the arrays of the nodes when they are full
+	private int newNode(){
+		if(this.numNodes == this.vantage.length){
+			int capacity = 2 * this.numNodes + 1;
+			this.vantage = Arrays.copyOf(this.vantage, capacity);
+			this.mu = Arrays.copyOf(this.mu, capacity);
+			this.inside = Arrays.copyOf(this.inside, capacity);
+			this.outside = Arrays.copyOf(this.outside, capacity);
+			this.start = Arrays.copyOf(this.start, capacity);
+			this.end = Arrays.copyOf(this.end, capacity);
+		}
+		return this.numNodes++;
+	}
+
+	/**
+	 * Builds the subtree of the points perm[lo, hi), dist being used to hold their distances from the vantage point
+	 *
+	 * @return the index of the root of the subtree
+	 */
+	private int build(float[] original, int[] perm, double[] dist, int lo, int hi, Random random){
+		int node = this.newNode();
+		this.start[node] = lo;
+		this.end[node] = hi;
+		int d = this.dimension;
+
+		if(hi - lo <= this.leafSize){
+			this.vantage[node] = -1;
+			return node;
+		}
+
+		// the vantage point is moved to the start of the range, the others are split around the median of their distances to it
+		swap(perm, dist, lo, lo + random.nextInt(hi - lo));
+		for(int i = lo + 1; i < hi; i++){
+			dist[i] = LabelledPoint.distance(original, perm[i] * d, original, perm[lo] * d, d);
+		}
+		int mid = (lo + 1 + hi) >>> 1;
+		select(perm, dist, lo + 1, hi, mid);
+
+		this.vantage[node] = lo;
+		this.mu[node] = dist[mid];
+		int insideChild = mid > lo + 1 ? this.build(original, perm, dist, lo + 1, mid, random) : -1;
+		int outsideChild = this.build(original, perm, dist, mid, hi, random);
+		this.inside[node] = insideChild;
+		this.outside[node] = outsideChild;
+		return node;
+	}
+
+	// swaps the elements i and j of the permutation and of the distances
+	private static void swap(int[] perm, double[] dist, int i, int j){
+		int tempPerm = perm[i];
+		perm[i] = perm[j];
+		perm[j] = tempPerm;
+		double tempDist = dist[i];
+		dist[i] = dist[j];
+		dist[j] = tempDist;
+	}
+
+	/**
+	 * Reorders [lo, hi) so that the element at index nth has the distance it would have if they were sorted by distance, the
+	 * elements before it having smaller or equal distances and the ones after larger or equal distances (quickselect)
+	 */
+	private static void select(int[] perm, double[] dist, int lo, int hi, int nth){
+		hi--;
+		while(lo < hi){
+			double pivot = dist[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while(i <= j){
+				while(dist[i] < pivot){
+					i++;
+				}
+				while(dist[j] > pivot){
+					j--;
+				}
+				if(i <= j){
+					swap(perm, dist, i, j);
+					i++;
+					j--;
+				}
+			}
+			if(nth <= j){
+				hi = j;
+			}
+			else if(nth >= i){
+				lo = i;
+			}
+			else{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query in the tree
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @return the k nearest points to the query, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k){
+		return this.findKNN(query, k, new long[1]);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query in the tree, counting the distances computed
+	 *
+	 * @param query the point of which we want to find the k nearest neighbors
+	 * @param k the number of nearest neighbors
+	 * @param evaluations receives, at index 0, the number of distances computed for the query
+	 * @return the k nearest points to the query, starting with the closest one
+	 */
+	public ArrayList<LabelledPoint> findKNN(LabelledPoint query, int k, long[] evaluations){
+		PriorityQueue4 pq = new PriorityQueue4(k);
+		evaluations[0] = 0;
+		if(this.root >= 0){
+			this.search(this.root, query.getData(), query.getOffset(), pq, evaluations);
+		}
+		this.queries.increment();
+		this.evaluations.add(evaluations[0]);
+		pq.countWork(evaluations[0]);
+
+		int size = pq.size();
+		int[] ids = new int[size];
+		double[] keys = new double[size];
+		pq.drainSorted(ids, keys);
+
+		ArrayList<LabelledPoint> finalKNN = new ArrayList<LabelledPoint>(size);
+		for(int i = 0; i < size; i++){
+			LabelledPoint point = this.pointsS.getPoint(this.rows[ids[i]]);
+			point.setKey(keys[i]);
+			finalKNN.add(point);
+		}
+		return finalKNN;
+	}
+
+	// visits the subtree of the node, the keys of the queue being distances and its ids indexes in the order of the tree
+	private void search(int node, float[] query, int queryOff, PriorityQueue4 pq, long[] evaluations){
+		int d = this.dimension;
+
+		if(this.vantage[node] < 0){
+			for(int i = this.start[node]; i < this.end[node]; i++){
+				double tau = pq.bound();
+				double squared = LabelledPoint.squaredDistance(this.vectors, i * d, query, queryOff, d, tau * tau);
+				evaluations[0]++;
+				if(squared < tau * tau){
+					pq.offer(i, Math.sqrt(squared));
+				}
+			}
+			return;
+		}
+
+		int vp = this.vantage[node];
+		double dv = LabelledPoint.distance(this.vectors, vp * d, query, queryOff, d);
+		evaluations[0]++;
+		pq.offer(vp, dv);
+
+		double median = this.mu[node];
+		int in = this.inside[node];
+		int out = this.outside[node];
+
+		// the side of the query is visited first, since it is the most likely to hold the nearest points
+		if(dv < median){
+			if(in >= 0 && dv - pq.bound() <= median){
+				this.search(in, query, queryOff, pq, evaluations);
+			}
+			if(out >= 0 && dv + pq.bound() >= median){
+				this.search(out, query, queryOff, pq, evaluations);
+			}
+		}
+		else{
+			if(out >= 0 && dv + pq.bound() >= median){
+				this.search(out, query, queryOff, pq, evaluations);
+			}
+			if(in >= 0 && dv - pq.bound() <= median){
+				this.search(in, query, queryOff, pq, evaluations);
+			}
+		}
+	}
+
+	/**
+	 * Gives the number of distances computed per query since the tree was built, compared to the ones of a linear scan
+	 *
+	 * @return the description of the savings
+	 */
+	public String statistics(){
+		long numQueries = this.queries.sum();
+		if(numQueries == 0){
+			return "VP-tree: no query answered";
+		}
+		double perQuery = (double) this.evaluations.sum() / numQueries;
+		int n = this.pointsS.size();
+		return String.format("VP-tree: %.1f distance evaluations per query, %.1f saved per query (%.1f%% of a linear scan over %d points)",
+			perQuery, n - perQuery, 100.0 * (n - perQuery) / Math.max(1, n), n);
+	}
+
+}
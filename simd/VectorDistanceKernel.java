@@ -0,0 +1,67 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/* 
+This class represents the distance loops written with the (incubating) JDK vector API, so that each instruction works on as
+many floats as the CPU vectors hold (8 with AVX2, 16 with AVX-512). It is compiled on its own, with the module added:
+
+    javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorDistanceKernel.java
+
+and LabelledPoint loads it by name when KNN is run with java --add-modules jdk.incubator.vector, the scalar loops being used
+otherwise.
+*/
+
+public class VectorDistanceKernel implements DistanceKernel {
+
+    // the widest vectors the CPU supports
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // the number of coordinates summed between two checks of the bound in squaredDistance, a multiple of the vector length
+    private static final int ABANDON_STEP = SPECIES.length() * Math.max(1, 32 / SPECIES.length());
+
+    // fails when the CPU has no vector registers, the scalar loops being faster than the emulated vectors in that case
+    public VectorDistanceKernel() {
+        if (SPECIES.length() < 4) {
+            throw new UnsupportedOperationException("no vector support for floats");
+        }
+    }
+
+    public double squaredDistance(float[] a, int aOff, float[] b, int bOff, int length, double bound) {
+        double sum = 0;
+        int i = 0;
+        int vectorEnd = SPECIES.loopBound(length);
+        while (i < vectorEnd) {
+            int stop = Math.min(i + ABANDON_STEP, vectorEnd);
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (; i < stop; i += SPECIES.length()) {
+                FloatVector diff = FloatVector.fromArray(SPECIES, a, aOff + i).sub(FloatVector.fromArray(SPECIES, b, bOff + i));
+                acc = diff.fma(diff, acc);
+            }
+            sum += acc.reduceLanes(VectorOperators.ADD);
+            if (sum > bound) {
+                return sum;
+            }
+        }
+        // the coordinates left over after the last whole vector
+        for (; i < length; i++) {
+            float diff = a[aOff + i] - b[bOff + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    public double innerProduct(float[] a, int aOff, float[] b, int bOff, int length) {
+        int i = 0;
+        int vectorEnd = SPECIES.loopBound(length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        for (; i < vectorEnd; i += SPECIES.length()) {
+            acc = FloatVector.fromArray(SPECIES, a, aOff + i).fma(FloatVector.fromArray(SPECIES, b, bOff + i), acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+}